@@ -0,0 +1,99 @@
+package com.bergerkiller.bukkit.maplands;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.logging.Level;
+
+import com.bergerkiller.bukkit.common.map.MapCanvas;
+import com.bergerkiller.bukkit.maplands.util.TileFrontBlocks;
+
+/**
+ * Renders a batch of depth slices of a display on worker threads.
+ * Every partition of the display that is not yet finished is rendered
+ * as a separate task, so that partitions render in parallel. Each partition
+ * draws onto a private copy of its area of the display canvas, using blocks
+ * read from chunk snapshots. Once done, the main thread copies the
+ * partition canvases back into the display layer.<br>
+ * <br>
+ * Partitions are rendered in the order they are given, up to a maximum number
+ * of partitions per job. This way the most important partitions finish first.<br>
+ * <br>
+ * While the job runs it owns the partitions, which must not be used by
+ * the main thread until the job has completed.
+ */
+public class AsyncRenderJob extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+    private final List<MapRenderPartition> partitions;
+    private final long maxRenderTime;
+    private volatile boolean stopRequested = false;
+
+    public AsyncRenderJob(MapCanvas layer, TileFrontBlocks frontBlocks, List<MapRenderPartition> partitions, int maxPartitions) {
+        // Copy the current color and depth information of the layer, and the front block records
+        // The partitions render on top of it without touching the layer itself
+        this.partitions = new ArrayList<MapRenderPartition>(Math.min(partitions.size(), maxPartitions));
+        for (MapRenderPartition partition : partitions) {
+            if (this.partitions.size() >= maxPartitions) {
+                break;
+            } else if (!partition.isFinished()) {
+                partition.copyFrom(layer, frontBlocks);
+                this.partitions.add(partition);
+            }
+        }
+        this.maxRenderTime = Maplands.getMaxRenderTime();
+    }
+
+    /**
+     * Starts running this job on the pool
+     *
+     * @param pool Pool to run the job on
+     */
+    public void start(ForkJoinPool pool) {
+        pool.execute(this);
+    }
+
+    /**
+     * Asks the job to stop after the current slice, and waits for it to finish.
+     * The work done so far is kept and can still be applied.
+     */
+    public void stop() {
+        this.stopRequested = true;
+        try {
+            this.join();
+        } catch (Throwable t) {
+            // Logged in compute()
+        }
+    }
+
+    /**
+     * Copies the rendered color and depth information into the layer of the display,
+     * and updates the front block records of the display with those of the partitions
+     * that rendered. Must be called on the main thread once the job is done.
+     *
+     * @param layer Display layer to write to
+     * @param frontBlocks Front-most opaque block records of the display, updated
+     */
+    public void apply(MapCanvas layer, TileFrontBlocks frontBlocks) {
+        for (MapRenderPartition partition : this.partitions) {
+            partition.copyTo(layer);
+        }
+        MapRenderPartition.updateFrontBlocks(this.partitions, frontBlocks);
+    }
+
+    @Override
+    protected void compute() {
+        List<ForkJoinTask<?>> tasks = new ArrayList<ForkJoinTask<?>>(this.partitions.size());
+        for (final MapRenderPartition partition : this.partitions) {
+            tasks.add(ForkJoinTask.adapt(() -> {
+                try {
+                    partition.render(this.maxRenderTime, () -> this.stopRequested);
+                } catch (Throwable t) {
+                    Maplands.plugin.getLogger().log(Level.SEVERE, "Failed to render map slices", t);
+                }
+            }));
+        }
+        ForkJoinTask.invokeAll(tasks);
+    }
+}
@@ -0,0 +1,285 @@
+package com.bergerkiller.bukkit.maplands;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.bukkit.HeightMap;
+import org.bukkit.World;
+
+import com.bergerkiller.bukkit.common.bases.IntVector2;
+import com.bergerkiller.bukkit.common.utils.MathUtil;
+import com.bergerkiller.bukkit.common.utils.WorldUtil;
+import com.bergerkiller.bukkit.common.wrappers.BlockData;
+import com.bergerkiller.bukkit.common.wrappers.BlockRenderOptions;
+import com.bergerkiller.bukkit.maplands.util.BlockPositionSet;
+
+/**
+ * Provides the blocks drawn by a {@link MapSliceRenderer}. Keeps the renderer
+ * independent of where the blocks come from: the live world on the main thread,
+ * chunk snapshots on a worker thread, or an in-memory world when no server is
+ * running at all.
+ */
+public interface BlockSource {
+
+    /**
+     * Gets the block data of the block at the given world coordinates.
+     * If the block is not available right now, because the chunk
+     * isn't loaded yet, null is returned.
+     *
+     * @param x World block x-coordinate
+     * @param y World block y-coordinate
+     * @param z World block z-coordinate
+     * @return block data, or null if not available
+     */
+    BlockData getBlockData(int x, int y, int z);
+
+    /**
+     * Gets whether {@link #getRenderOptions(int, int, int, BlockData)} looks at the
+     * blocks next to a block. If not, the default render options of the block data
+     * are always used.
+     *
+     * @return True if render options depend on the neighbouring blocks
+     */
+    default boolean hasNeighbourRenderOptions() {
+        return false;
+    }
+
+    /**
+     * Gets the render options of a block that looks different depending on the
+     * blocks next to it, like fences. By default the neighbouring blocks are not
+     * known, and the default render options of the block data are returned.
+     *
+     * @param x World block x-coordinate
+     * @param y World block y-coordinate
+     * @param z World block z-coordinate
+     * @param blockData Block data of the block, as returned by {@link #getBlockData(int, int, int)}
+     * @return render options of the block
+     */
+    default BlockRenderOptions getRenderOptions(int x, int y, int z, BlockData blockData) {
+        return blockData.getDefaultRenderOptions();
+    }
+
+    /**
+     * Gets whether the blocks of a chunk are available right now
+     *
+     * @param cx Chunk x-coordinate
+     * @param cz Chunk z-coordinate
+     * @return True if the chunk is available
+     */
+    boolean isChunkAvailable(int cx, int cz);
+
+    /**
+     * Gets the number of block layers of the chunk containing the given block,
+     * starting at the given y-coordinate and going down, that are known to only
+     * contain air. If this is not known, because the chunk isn't available right
+     * now, 0 is returned.
+     *
+     * @param x World block x-coordinate
+     * @param y World block y-coordinate
+     * @param z World block z-coordinate
+     * @return number of layers that are air, {@link Integer#MAX_VALUE} if the whole chunk is air
+     */
+    int getEmptyLayers(int x, int y, int z);
+
+    /**
+     * Notifies that a block changed, so that information remembered about
+     * the chunk containing it, like which layers are air, is kept correct
+     *
+     * @param x World block x-coordinate
+     * @param y World block y-coordinate
+     * @param z World block z-coordinate
+     */
+    default void invalidateBlock(int x, int y, int z) {
+    }
+
+    /**
+     * Reads blocks of the live world. Chunks that are not loaded are
+     * loaded asynchronously, and until then are not available.
+     * Must only be used on the main thread.
+     */
+    public static final class LiveWorld implements BlockSource {
+        private final World world;
+        private final MaplandsDisplayChunks chunks;
+        private final Map<IntVector2, Integer> chunkHeights = new HashMap<IntVector2, Integer>();
+
+        public LiveWorld(World world, MaplandsDisplayChunks chunks) {
+            this.world = world;
+            this.chunks = chunks;
+        }
+
+        @Override
+        public BlockData getBlockData(int x, int y, int z) {
+            if (!this.chunks.cacheBlock(this.world, x, z)) {
+                return null;
+            } else if (this.chunks.isBlockMissing(this.world, x, z)) {
+                return BlockData.AIR; // Not generated, show as void
+            }
+            return WorldUtil.getBlockData(this.world, x, y, z);
+        }
+
+        @Override
+        public boolean hasNeighbourRenderOptions() {
+            return true;
+        }
+
+        @Override
+        public BlockRenderOptions getRenderOptions(int x, int y, int z, BlockData blockData) {
+            return blockData.getRenderOptions(this.world, x, y, z);
+        }
+
+        @Override
+        public boolean isChunkAvailable(int cx, int cz) {
+            return this.chunks.cacheChunk(this.world, cx, cz);
+        }
+
+        @Override
+        public int getEmptyLayers(int x, int y, int z) {
+            if (!this.chunks.cacheBlock(this.world, x, z)) {
+                return 0;
+            } else if (this.chunks.isBlockMissing(this.world, x, z)) {
+                return Integer.MAX_VALUE; // Not generated, all air
+            }
+
+            // Blocks above the highest block of the chunk are air
+            int height = Math.min(this.getChunkHeight(MathUtil.toChunk(x), MathUtil.toChunk(z)), Maplands.getMaxRenderY() - 1);
+            return (y > height) ? (y - height) : 0;
+        }
+
+        @Override
+        public void invalidateBlock(int x, int y, int z) {
+            // A block placed above the highest block raises it. Blocks behind it
+            // are drawn again once it is broken, so it can not be forgotten.
+            IntVector2 coord = new IntVector2(MathUtil.toChunk(x), MathUtil.toChunk(z));
+            Integer height = this.chunkHeights.get(coord);
+            if (height != null && y > height.intValue()) {
+                this.chunkHeights.put(coord, y);
+            }
+        }
+
+        /**
+         * Gets the y-coordinate of the highest block that isn't air in a loaded chunk.
+         * Is computed from the world surface heightmap once, and then remembered.
+         * Blocks placed higher later on raise it, see {@link #invalidateBlock(int, int, int)}.
+         * It is never lowered, which only means fewer layers are skipped.
+         */
+        private int getChunkHeight(int cx, int cz) {
+            return this.chunkHeights.computeIfAbsent(new IntVector2(cx, cz), c -> {
+                int height = Integer.MIN_VALUE;
+                int bx = c.x << 4, bz = c.z << 4;
+                for (int dx = 0; dx < 16; dx++) {
+                    for (int dz = 0; dz < 16; dz++) {
+                        height = Math.max(height, this.world.getHighestBlockYAt(bx + dx, bz + dz, HeightMap.WORLD_SURFACE));
+                    }
+                }
+                return height;
+            });
+        }
+    }
+
+    /**
+     * Reads blocks from immutable chunk snapshots, or chunks read from the
+     * region files. Can be used from any thread. Chunks that have no snapshot
+     * yet are registered as missing, so the main thread can capture them.
+     */
+    public static final class FromSnapshots implements BlockSource {
+        private final MaplandsDisplaySnapshots snapshots;
+        private ChunkBlocks lastSnapshot = null;
+
+        public FromSnapshots(MaplandsDisplaySnapshots snapshots) {
+            this.snapshots = snapshots;
+        }
+
+        @Override
+        public BlockData getBlockData(int x, int y, int z) {
+            ChunkBlocks snapshot = this.getChunk(MathUtil.toChunk(x), MathUtil.toChunk(z));
+            return (snapshot == null) ? null : snapshot.getBlockData(x & 0xF, y, z & 0xF);
+        }
+
+        @Override
+        public boolean isChunkAvailable(int cx, int cz) {
+            // Registers the chunk as missing again if it is still not captured
+            return this.snapshots.getChunk(cx, cz) != null;
+        }
+
+        @Override
+        public int getEmptyLayers(int x, int y, int z) {
+            ChunkBlocks snapshot = this.getChunk(MathUtil.toChunk(x), MathUtil.toChunk(z));
+            if (snapshot == null || !snapshot.isSectionEmpty(y)) {
+                return 0;
+            }
+
+            // Skip to the bottom of chunk sections that only contain air
+            return ((y - this.snapshots.getMinHeight()) & 0xF) + 1;
+        }
+
+        private ChunkBlocks getChunk(int cx, int cz) {
+            // If same as last chunk, use that instantly
+            // Saves a lookup while scanning blocks
+            ChunkBlocks snapshot = this.lastSnapshot;
+            if (snapshot == null || snapshot.getX() != cx || snapshot.getZ() != cz) {
+                snapshot = this.snapshots.getChunk(cx, cz);
+                if (snapshot != null) {
+                    this.lastSnapshot = snapshot;
+                }
+            }
+            return snapshot;
+        }
+    }
+
+    /**
+     * An in-memory world of blocks, which does not need a server. All chunks
+     * are available, and blocks that are not set are air. Can be used to render
+     * offline, or to test and benchmark the renderer. Is not thread-safe while
+     * blocks are being set.
+     */
+    public static final class Synthetic implements BlockSource {
+        private final Map<Long, BlockData> blocks = new HashMap<Long, BlockData>();
+        private final Map<Long, Integer> chunkHeights = new HashMap<Long, Integer>();
+
+        /**
+         * Sets the block data of a block
+         *
+         * @param x World block x-coordinate
+         * @param y World block y-coordinate
+         * @param z World block z-coordinate
+         * @param blockData Block data to set, {@link BlockData#AIR} to remove the block
+         */
+        public void setBlock(int x, int y, int z, BlockData blockData) {
+            long position = BlockPositionSet.pack(x, y, z);
+            if (blockData == BlockData.AIR) {
+                this.blocks.remove(position);
+            } else {
+                this.blocks.put(position, blockData);
+                this.chunkHeights.merge(MapUtil.getChunkKey(MathUtil.toChunk(x), MathUtil.toChunk(z)), y, Math::max);
+            }
+        }
+
+        /**
+         * Gets the block data of a block. Blocks that are not set are air.
+         *
+         * @param x World block x-coordinate
+         * @param y World block y-coordinate
+         * @param z World block z-coordinate
+         * @return block data, {@link BlockData#AIR} if not set
+         */
+        @Override
+        public BlockData getBlockData(int x, int y, int z) {
+            return this.blocks.getOrDefault(BlockPositionSet.pack(x, y, z), BlockData.AIR);
+        }
+
+        @Override
+        public boolean isChunkAvailable(int cx, int cz) {
+            return true;
+        }
+
+        @Override
+        public int getEmptyLayers(int x, int y, int z) {
+            // Is not lowered when blocks are removed again, which only skips less
+            Integer height = this.chunkHeights.get(MapUtil.getChunkKey(MathUtil.toChunk(x), MathUtil.toChunk(z)));
+            if (height == null) {
+                return Integer.MAX_VALUE;
+            }
+            return (y > height.intValue()) ? (y - height.intValue()) : 0;
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package com.bergerkiller.bukkit.maplands;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.bukkit.Bukkit;
+import org.bukkit.ChunkSnapshot;
+
+import com.bergerkiller.bukkit.common.wrappers.BlockData;
+import com.bergerkiller.bukkit.maplands.anvil.AnvilChunk;
+
+/**
+ * Immutable block data of a single chunk, used when rendering on worker threads.
+ * Is either a snapshot of a loaded chunk, or a chunk read straight from the
+ * region files of the world.
+ */
+public interface ChunkBlocks {
+
+    /**
+     * Gets the chunk x-coordinate
+     *
+     * @return chunk x
+     */
+    int getX();
+
+    /**
+     * Gets the chunk z-coordinate
+     *
+     * @return chunk z
+     */
+    int getZ();
+
+    /**
+     * Gets the block data of a block in this chunk
+     *
+     * @param x Block x-coordinate, 0 - 15
+     * @param y World block y-coordinate
+     * @param z Block z-coordinate, 0 - 15
+     * @return block data
+     */
+    BlockData getBlockData(int x, int y, int z);
+
+    /**
+     * Gets whether the 16-block section containing a y-coordinate only contains air
+     *
+     * @param y World block y-coordinate
+     * @return True if the section is empty, False if not or if y is outside the world
+     */
+    boolean isSectionEmpty(int y);
+
+    /**
+     * Gets the blocks of a chunk snapshot
+     *
+     * @param snapshot Chunk snapshot
+     * @param minHeight Minimum block y-coordinate of the world
+     * @param height Number of block layers of the world
+     * @return chunk blocks
+     */
+    static ChunkBlocks ofSnapshot(ChunkSnapshot snapshot, int minHeight, int height) {
+        return new SnapshotBlocks(snapshot, minHeight, height);
+    }
+
+    /**
+     * Gets the blocks of a chunk read from the region files
+     *
+     * @param chunk Chunk read from the region files
+     * @return chunk blocks
+     */
+    static ChunkBlocks ofAnvil(AnvilChunk chunk) {
+        return new AnvilBlocks(chunk);
+    }
+
+    /**
+     * Chunk blocks read from a chunk snapshot of a loaded chunk
+     */
+    static final class SnapshotBlocks implements ChunkBlocks {
+        private final ChunkSnapshot snapshot;
+        private final int minHeight;
+        private final int height;
+
+        private SnapshotBlocks(ChunkSnapshot snapshot, int minHeight, int height) {
+            this.snapshot = snapshot;
+            this.minHeight = minHeight;
+            this.height = height;
+        }
+
+        @Override
+        public int getX() {
+            return this.snapshot.getX();
+        }
+
+        @Override
+        public int getZ() {
+            return this.snapshot.getZ();
+        }
+
+        @Override
+        public BlockData getBlockData(int x, int y, int z) {
+            return BlockData.fromBukkit(this.snapshot.getBlockData(x, y, z));
+        }
+
+        @Override
+        public boolean isSectionEmpty(int y) {
+            int sectionY = y - this.minHeight;
+            return sectionY >= 0 && sectionY < this.height && this.snapshot.isSectionEmpty(sectionY >> 4);
+        }
+    }
+
+    /**
+     * Chunk blocks read from the region files. The block state strings of the
+     * palettes are turned into block data once, and shared by all chunks.
+     */
+    static final class AnvilBlocks implements ChunkBlocks {
+        private static final Map<String, BlockData> blockDataByState = new ConcurrentHashMap<String, BlockData>();
+        private final AnvilChunk chunk;
+        private final BlockData[][] palettes;
+
+        private AnvilBlocks(AnvilChunk chunk) {
+            this.chunk = chunk;
+            this.palettes = new BlockData[chunk.getSectionCount()][];
+        }
+
+        @Override
+        public int getX() {
+            return this.chunk.getX();
+        }
+
+        @Override
+        public int getZ() {
+            return this.chunk.getZ();
+        }
+
+        @Override
+        public BlockData getBlockData(int x, int y, int z) {
+            int sectionIndex = this.chunk.getSectionIndex(y);
+            if (sectionIndex == -1 || this.chunk.isSectionEmpty(sectionIndex)) {
+                return BlockData.AIR;
+            }
+
+            // Not synchronized, at worst two threads resolve the same palette
+            BlockData[] palette = this.palettes[sectionIndex];
+            if (palette == null) {
+                String[] states = this.chunk.getPalette(sectionIndex);
+                palette = new BlockData[states.length];
+                for (int i = 0; i < states.length; i++) {
+                    palette[i] = blockDataByState.computeIfAbsent(states[i], AnvilBlocks::parseBlockState);
+                }
+                this.palettes[sectionIndex] = palette;
+            }
+
+            int index = this.chunk.getPaletteIndex(sectionIndex, x, y, z);
+            return (index < palette.length) ? palette[index] : BlockData.AIR;
+        }
+
+        @Override
+        public boolean isSectionEmpty(int y) {
+            int sectionIndex = this.chunk.getSectionIndex(y);
+            return sectionIndex != -1 && this.chunk.isSectionEmpty(sectionIndex);
+        }
+
+        private static BlockData parseBlockState(String state) {
+            try {
+                return BlockData.fromBukkit(Bukkit.createBlockData(state));
+            } catch (IllegalArgumentException ex) {
+                // Block of a newer version or a mod, not known by the server
+                return BlockData.AIR;
+            }
+        }
+    }
+}
@@ -1,8 +1,10 @@
 package com.bergerkiller.bukkit.maplands;
 
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import org.bukkit.Material;
 import org.bukkit.World;
@@ -17,10 +19,31 @@ import com.bergerkiller.bukkit.common.wrappers.BlockData;
 import com.bergerkiller.bukkit.common.wrappers.BlockRenderOptions;
 
 /**
- * Renders and caches isometric block sprites
+ * Renders and caches isometric block sprites. Can be used from multiple threads
+ * at once. Sprites that are cached are looked up without locking. Every sprite
+ * is only rendered once, threads that need a sprite that another thread is
+ * rendering right now wait for that thread to finish.<br>
+ * <br>
+ * Most blocks look the same no matter what blocks are next to them. The sprites
+ * of those are also stored in an array indexed by the block state id, so that
+ * they are found without creating render options. See {@link #getDefaultSprite(BlockData)}
+ * and {@link #getStateSprite(BlockData)}.
  */
 public class IsometricBlockSprites {
-    private final HashMap<BlockRenderOptions, Sprite> spriteCache = new HashMap<BlockRenderOptions, Sprite>();
+    /** Sprites are rendered using the resource pack, which is not thread-safe */
+    private static final Object RENDER_LOCK = new Object();
+    private final ConcurrentHashMap<BlockRenderOptions, Sprite> spriteCache = new ConcurrentHashMap<BlockRenderOptions, Sprite>();
+    private final ConcurrentHashMap<BlockRenderOptions, CompletableFuture<Sprite>> spritesRendering = new ConcurrentHashMap<BlockRenderOptions, CompletableFuture<Sprite>>();
+    /** Stored in the state sprites table for block states that look different depending on neighbouring blocks */
+    private static final Sprite NEIGHBOUR_DEPENDENT = new Sprite(null, false, null);
+    /** Number of times a block state must be seen with its default render options before its sprite is cached by id */
+    private static final int STATE_SAMPLES = 8;
+    /** Sprites of the default render options of block states, by block state id */
+    private final SpriteTable defaultSprites = new SpriteTable();
+    /** Sprites by block state id of block states that look the same no matter their neighbours */
+    private final SpriteTable stateSprites = new SpriteTable();
+    /** Number of times block states not yet in the state sprites table were seen with their default render options */
+    private final ConcurrentHashMap<Integer, AtomicInteger> stateSamples = new ConcurrentHashMap<Integer, AtomicInteger>();
     private final BlockFace facing;
     private final ZoomLevel zoom;
     private final Matrix4x4 transform;
@@ -60,7 +83,128 @@ public class IsometricBlockSprites {
     }
 
     public Sprite getSprite(BlockRenderOptions options) {
-        return spriteCache.computeIfAbsent(options, this::renderSprite);
+        Sprite sprite = spriteCache.get(options);
+        return (sprite != null) ? sprite : renderSpriteOnce(options);
+    }
+
+    /**
+     * Gets the sprite of a block state using its default render options, ignoring
+     * the blocks next to it. This is a lot faster than looking up the sprite using
+     * render options, and is correct for all blocks when the neighbouring blocks
+     * are not known, like when rendering chunk snapshots.
+     *
+     * @param blockData Block data
+     * @return sprite of the default render options of the block data
+     */
+    public Sprite getDefaultSprite(BlockData blockData) {
+        int id = blockData.getCombinedId();
+        Sprite sprite = this.defaultSprites.get(id);
+        if (sprite == null) {
+            sprite = getSprite(blockData.getDefaultRenderOptions());
+            this.defaultSprites.set(id, sprite);
+        }
+        return sprite;
+    }
+
+    /**
+     * Gets the sprite of a block state, if the block is known to look the same no
+     * matter what blocks are next to it. This is the case for most blocks, and is a
+     * lot faster than looking up the sprite using render options. For blocks that
+     * connect to their neighbours, like fences, walls and fluids, or blocks that
+     * were not verified yet, null is returned. The sprite must then be looked up
+     * using the render options of the block in the world, which should be passed
+     * to {@link #verifyStateSprite(BlockData, BlockRenderOptions)}.
+     *
+     * @param blockData Block data
+     * @return sprite, or null if the sprite might depend on the neighbouring blocks
+     */
+    public Sprite getStateSprite(BlockData blockData) {
+        Sprite sprite = this.stateSprites.get(blockData.getCombinedId());
+        return (sprite == NEIGHBOUR_DEPENDENT) ? null : sprite;
+    }
+
+    /**
+     * Checks whether a block state looks the same no matter what blocks are next to it,
+     * by comparing the render options of the block in the world with its default render
+     * options. BKCommonLib adds options computed from neighbouring blocks, like the
+     * connections of fences or the flow of fluids, so when these are equal the block did
+     * not depend on its neighbours here. Once a block state was seen with its default
+     * render options often enough, {@link #getStateSprite(BlockData)} returns its sprite.
+     * Block states ever seen with other options are never cached this way.
+     *
+     * @param blockData Block data
+     * @param options Render options of the block in the world
+     */
+    public void verifyStateSprite(BlockData blockData, BlockRenderOptions options) {
+        int id = blockData.getCombinedId();
+        if (id < 0 || this.stateSprites.get(id) != null) {
+            return;
+        }
+
+        if (isNeighbourDependent(blockData) || !options.equals(blockData.getDefaultRenderOptions())) {
+            this.stateSprites.set(id, NEIGHBOUR_DEPENDENT);
+            this.stateSamples.remove(id);
+        } else if (this.stateSamples.computeIfAbsent(id, i -> new AtomicInteger()).incrementAndGet() >= STATE_SAMPLES) {
+            this.stateSprites.set(id, getDefaultSprite(blockData));
+            this.stateSamples.remove(id);
+        }
+    }
+
+    /**
+     * Gets whether the render options of a block are known to depend on the blocks
+     * next to it. Since Minecraft 1.13 the connections are part of the block state for
+     * nearly all blocks, but on older versions they are computed from the neighbouring
+     * blocks. Fluids always look at their neighbours. Blocks not listed here are still
+     * checked by {@link #verifyStateSprite(BlockData, BlockRenderOptions)}.
+     */
+    private static boolean isNeighbourDependent(BlockData blockData) {
+        String name = blockData.getType().name();
+        return name.contains("FENCE")
+                || name.endsWith("_WALL")
+                || name.contains("PANE")
+                || name.equals("THIN_GLASS")
+                || name.equals("IRON_BARS")
+                || name.equals("REDSTONE_WIRE")
+                || name.equals("TRIPWIRE")
+                || name.equals("CHORUS_PLANT")
+                || name.equals("VINE")
+                || name.equals("FIRE")
+                || name.endsWith("_STAIRS")
+                || name.endsWith("_DOOR")
+                || name.equals("WATER")
+                || name.equals("STATIONARY_WATER")
+                || name.equals("LAVA")
+                || name.equals("STATIONARY_LAVA");
+    }
+
+    /**
+     * Renders a sprite that is not cached yet. If another thread is already
+     * rendering the same sprite, waits for that thread instead.
+     */
+    private Sprite renderSpriteOnce(BlockRenderOptions options) {
+        CompletableFuture<Sprite> future = new CompletableFuture<Sprite>();
+        CompletableFuture<Sprite> existing = spritesRendering.putIfAbsent(options, future);
+        if (existing != null) {
+            return existing.join();
+        }
+
+        try {
+            // Another thread might have finished rendering it right before
+            Sprite sprite = spriteCache.get(options);
+            if (sprite == null) {
+                synchronized (RENDER_LOCK) {
+                    sprite = renderSprite(options);
+                }
+                spriteCache.put(options, sprite);
+            }
+            future.complete(sprite);
+            return sprite;
+        } catch (Throwable t) {
+            future.completeExceptionally(t);
+            throw t;
+        } finally {
+            spritesRendering.remove(options, future);
+        }
     }
 
     private Sprite renderSprite(BlockRenderOptions options) {
@@ -72,18 +216,23 @@ public class IsometricBlockSprites {
 
         // Compare texture with the sprite mask to see if all pixels are drawn
         // If they are, the sprite is fully opaque, and that flag can be set
+        // The pixels that are drawn are stored in the coverage bitmask
         byte[] texture_buffer = texture.getBuffer();
         byte[] mask_buffer = this.zoom.getMask().getBuffer();
         int len = this.width * this.height;
+        long[] coverage = new long[(len + 63) >> 6];
         boolean isFullyOpaque = true;
         for (int i = 0; i < len; i++) {
-            if (mask_buffer[i] != 0 && MapColorPalette.isTransparent(texture_buffer[i])) {
-                isFullyOpaque = false;
-                break;
+            if (mask_buffer[i] != 0) {
+                if (MapColorPalette.isTransparent(texture_buffer[i])) {
+                    isFullyOpaque = false;
+                } else {
+                    coverage[i >> 6] |= (1L << i);
+                }
             }
         }
 
-        return new Sprite(texture, isFullyOpaque);
+        return new Sprite(texture, isFullyOpaque, coverage);
     }
 
     /**
@@ -101,32 +250,80 @@ public class IsometricBlockSprites {
     }
 
     // Static caches for different zoom levels and different yaw rotations
+    // Indexed by facing ordinal and zoom ordinal
 
-    private static List<IsometricBlockSprites> instances = new ArrayList<IsometricBlockSprites>();
+    private static final int ZOOM_COUNT = ZoomLevel.values().length;
+    private static final AtomicReferenceArray<IsometricBlockSprites> instances =
+            new AtomicReferenceArray<IsometricBlockSprites>(BlockFace.values().length * ZOOM_COUNT);
 
     public static IsometricBlockSprites getSprites(BlockFace facing, ZoomLevel zoom) {
-        for (IsometricBlockSprites sprites : instances) {
-            if (sprites.facing == facing && sprites.zoom == zoom) {
-                return sprites;
+        int index = facing.ordinal() * ZOOM_COUNT + zoom.ordinal();
+        IsometricBlockSprites sprites = instances.get(index);
+        if (sprites == null) {
+            synchronized (instances) {
+                sprites = instances.get(index);
+                if (sprites == null) {
+                    sprites = new IsometricBlockSprites(facing, zoom);
+                    instances.set(index, sprites);
+                }
             }
         }
-        IsometricBlockSprites sprites = new IsometricBlockSprites(facing, zoom);
-        instances.add(sprites);
         return sprites;
     }
 
+    /**
+     * Stores sprites by block state id, in an array that is grown when needed.
+     * Sprites have only final fields, so they are stored and read without locking.
+     * A sprite stored while the array is grown might get lost, and is then just looked up again.
+     */
+    private static final class SpriteTable {
+        private volatile Sprite[] sprites = new Sprite[1024];
+
+        public Sprite get(int id) {
+            Sprite[] sprites = this.sprites;
+            return (id >= 0 && id < sprites.length) ? sprites[id] : null;
+        }
+
+        public void set(int id, Sprite sprite) {
+            if (id < 0) {
+                return;
+            }
+            Sprite[] sprites = this.sprites;
+            if (id >= sprites.length) {
+                synchronized (this) {
+                    sprites = this.sprites;
+                    if (id >= sprites.length) {
+                        sprites = Arrays.copyOf(sprites, Math.max(sprites.length * 2, id + 1));
+                        this.sprites = sprites;
+                    }
+                }
+            }
+            sprites[id] = sprite;
+        }
+    }
+
     /**
      * A single isometric block sprite. Stores the texture,
      * and metadata about the sprite which might be helpful
      * for rendering.
      */
     public static final class Sprite {
+        private static final AtomicInteger nextId = new AtomicInteger();
+        /** Unique id of this sprite */
+        public final int id;
         public final MapTexture texture;
         public final boolean isFullyOpaque;
+        /**
+         * Bitmask of the pixels of the texture, within the sprite brush,
+         * that are drawn. Bit (y * width + x) is set if the pixel is drawn.
+         */
+        public final long[] coverage;
 
-        public Sprite(MapTexture texture, boolean isFullyOpaque) {
+        public Sprite(MapTexture texture, boolean isFullyOpaque, long[] coverage) {
+            this.id = nextId.incrementAndGet();
             this.texture = texture;
             this.isFullyOpaque = isFullyOpaque;
+            this.coverage = coverage;
         }
     }
 }
@@ -14,6 +14,22 @@ public final class MapBlockBounds {
     private int min_x, min_y, min_z;
     private int max_x, max_y, max_z;
 
+    public int getMinX() {
+        return min_x;
+    }
+
+    public int getMinZ() {
+        return min_z;
+    }
+
+    public int getMaxX() {
+        return max_x;
+    }
+
+    public int getMaxZ() {
+        return max_z;
+    }
+
     public boolean contains(int bx, int by, int bz) {
         return bx >= min_x && bx <= max_x &&
                by >= min_y && by <= max_y &&
@@ -1,38 +1,51 @@
 package com.bergerkiller.bukkit.maplands;
 
-import java.awt.Color;
 import java.awt.image.BufferedImage;
 import java.awt.image.DataBufferByte;
 import java.awt.image.DataBufferUShort;
-import java.awt.image.IndexColorModel;
-import java.awt.image.Raster;
-import java.awt.image.WritableRaster;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.File;
 import java.io.IOException;
-import java.util.Iterator;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.UUID;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.function.Function;
 import java.util.logging.Level;
 
 import javax.imageio.ImageIO;
 
+import org.bukkit.block.BlockFace;
+
 import com.bergerkiller.bukkit.common.AsyncTask;
 import com.bergerkiller.bukkit.common.map.MapCanvas;
-import com.bergerkiller.bukkit.common.map.MapColorPalette;
 import com.bergerkiller.bukkit.common.utils.CommonUtil;
-import com.bergerkiller.mountiplex.reflection.SafeMethod;
 import com.google.common.io.Files;
 
 public class MapCanvasCache {
     private final Maplands _plugin;
     private boolean _enabled = true;
     private final File _cacheFolder;
-    private final Map<UUID, Item> _cache = new ConcurrentHashMap<UUID, Item>();
+    private final MapCanvasMemoryCache _cache = new MapCanvasMemoryCache();
+    /**
+     * Stores the data of all maps in a single file, null when not used. Is opened read-only when
+     * maps are no longer packed, so that maps stored in it before are still found.
+     */
+    private volatile MapCanvasPackedStore _packedStore = null;
+    /** Held while saving, so that the packed store is not closed while it is written to */
+    private final Object _saveLock = new Object();
+    /** Reads cached data from disk, threads stop when there is nothing to read */
+    private final ThreadPoolExecutor _loadExecutor = new ThreadPoolExecutor(2, 2, 30, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(), runnable -> {
+                Thread thread = new Thread(runnable, "Maplands-CacheLoader");
+                thread.setDaemon(true);
+                return thread;
+            });
     private final AsyncTask _saveTask = new AsyncTask() {
         private final Object saveLock = new Object(); // Make sure run() only runs once.
 
@@ -42,40 +55,78 @@ public class MapCanvasCache {
                 while (true) {
                     boolean savedSomething = false;
                     long expireTime = System.currentTimeMillis() - 10*60*1000; // 10 minutes
-                    Iterator<Map.Entry<UUID, Item>> iter = _cache.entrySet().iterator();
-                    while (iter.hasNext()) {
-                        Map.Entry<UUID, Item> entry = iter.next();
-                        Item item = entry.getValue();
-                        if (item.saved.compareAndSet(false, true)) {
+                    synchronized (_saveLock) {
+                        MapCanvasPackedStore packedStore = _packedStore;
+                        if (packedStore != null && packedStore.isReadOnly()) {
+                            packedStore = null;
+                        }
+                        List<Map.Entry<UUID, Item>> packedEntries = new ArrayList<Map.Entry<UUID, Item>>();
+                        for (Map.Entry<UUID, Item> entry : _cache.getUnsaved()) {
                             UUID mapUUID = entry.getKey();
+                            Item item = entry.getValue();
 
-                            savedSomething = true;
                             _cacheFolder.mkdirs();
 
-                            ImageIO.setUseCache(false);
+                            // Marked saved once the index of the packed file is written below
+                            if (packedStore != null) {
+                                try {
+                                    packedStore.write(mapUUID, MapCanvasCacheFile.encode(item));
+                                    packedEntries.add(entry);
+                                } catch (IOException e) {
+                                    _plugin.getLogger().log(Level.SEVERE, "Failed to save data of {" + mapUUID.toString() + "} to cache", e);
+                                }
+                                continue;
+                            }
 
-                            boolean success = true;
+                            // Write to a temporary file first, so a crash while writing keeps the old file
+                            File file = getCacheFile(mapUUID);
+                            File tmpFile = new File(_cacheFolder, file.getName() + ".tmp");
                             try {
-                                success &= ImageIO.write(item.color, "gif", getColorFile(mapUUID));
+                                Files.write(MapCanvasCacheFile.encode(item), tmpFile);
+                                if (!tmpFile.renameTo(file)) {
+                                    file.delete();
+                                    if (!tmpFile.renameTo(file)) {
+                                        throw new IOException("Failed to move " + tmpFile.getName() + " to " + file.getName());
+                                    }
+                                }
+
+                                // Data of older versions of Maplands is no longer needed
+                                getLegacyColorFile(mapUUID).delete();
+                                getLegacyDepthFile(mapUUID).delete();
+
+                                // Only marked saved once on disk, so that it is not evicted from memory before
+                                // When saving failed it stays unsaved, and saving is tried again later
+                                item.saved.set(true);
+                                savedSomething = true;
                             } catch (IOException e) {
-                                _plugin.getLogger().log(Level.SEVERE, "Failed to save color data of {" + mapUUID.toString() + "} to cache", e);
-                                success = false;
+                                _plugin.getLogger().log(Level.SEVERE, "Failed to save data of {" + mapUUID.toString() + "} to cache", e);
+                                tmpFile.delete();
                             }
+                        }
+
+                        // Write the index of the packed file once for everything saved
+                        if (!packedEntries.isEmpty()) {
                             try {
-                                success &= writeAndVerifyPNG(item.depth, getDepthFile(mapUUID));
+                                packedStore.flush();
+
+                                // Only now the packed file is used on load, and the separate files are no longer needed
+                                for (Map.Entry<UUID, Item> entry : packedEntries) {
+                                    getCacheFile(entry.getKey()).delete();
+                                    getLegacyColorFile(entry.getKey()).delete();
+                                    getLegacyDepthFile(entry.getKey()).delete();
+                                    entry.getValue().saved.set(true);
+                                }
+                                savedSomething = true;
                             } catch (IOException e) {
-                                _plugin.getLogger().log(Level.SEVERE, "Failed to save depth data of {" + mapUUID.toString() + "} to cache", e);
-                                success = false;
+                                _plugin.getLogger().log(Level.SEVERE, "Failed to write index of packed cache", e);
                             }
-                            if (!success) {
-                                // Cleanup
-                                getColorFile(mapUUID).delete();
-                                getDepthFile(mapUUID).delete();
-                            }
-                        } else if (item.created < expireTime) {
-                            iter.remove();
                         }
                     }
+
+                    // Saved entries can now be evicted to stay within the memory limit
+                    _cache.evictSaved();
+                    _cache.removeExpired(expireTime);
+
                     if (!savedSomething) {
                         synchronized (this) {
                             if (this.isStopRequested()) {
@@ -95,6 +146,16 @@ public class MapCanvasCache {
     public MapCanvasCache(Maplands plugin, File cacheFolder) {
         _plugin = plugin;
         _cacheFolder = cacheFolder;
+        _loadExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Gets the cache of map data kept in memory
+     *
+     * @return memory cache
+     */
+    public MapCanvasMemoryCache getMemoryCache() {
+        return _cache;
     }
 
     public void setEnabled(boolean enabled) {
@@ -111,16 +172,77 @@ public class MapCanvasCache {
         }
     }
 
-    public void save(UUID mapUUID, MapCanvas canvas) {
+    /**
+     * Sets whether the data of all maps is stored in a single packed file,
+     * instead of a file for every map. Data of maps stored the other way is
+     * still read, and is moved once the map is saved again. When not packed,
+     * a packed file stored before is opened read-only, so that the maps in it
+     * are still found until they are saved again in a file of their own.
+     *
+     * @param packed True to store all data in a single file
+     */
+    public void setPacked(boolean packed) {
+        synchronized (_saveLock) {
+            MapCanvasPackedStore packedStore = _packedStore;
+            if (packedStore != null && packedStore.isReadOnly() != packed) {
+                return; // Already opened the right way
+            }
+            closePackedStore();
+            try {
+                if (packed) {
+                    _packedStore = new MapCanvasPackedStore(_cacheFolder, "maps");
+                } else if (MapCanvasPackedStore.exists(_cacheFolder, "maps")) {
+                    _packedStore = new MapCanvasPackedStore(_cacheFolder, "maps", true);
+                }
+            } catch (IOException e) {
+                _plugin.getLogger().log(Level.SEVERE, "Failed to open packed cache, storing a file for every map instead", e);
+            }
+        }
+    }
+
+    /**
+     * Saves all data not yet saved, and closes the packed file if used.
+     * Must be called when the plugin disables.
+     */
+    public void close() {
+        setEnabled(false);
+        synchronized (_saveLock) {
+            closePackedStore();
+        }
+    }
+
+    // Threads still reading from the store while it closes find nothing in it
+    private void closePackedStore() {
+        MapCanvasPackedStore packedStore = _packedStore;
+        if (packedStore != null) {
+            _packedStore = null;
+            try {
+                packedStore.close();
+            } catch (IOException e) {
+                _plugin.getLogger().log(Level.SEVERE, "Failed to close packed cache", e);
+            }
+        }
+    }
+
+    /**
+     * Stores the color and depth buffers of a canvas in the cache, and saves
+     * them to disk in the background
+     *
+     * @param mapUUID Unique id of the map
+     * @param canvas Canvas to store
+     * @param view View the canvas was rendered with
+     */
+    public void save(UUID mapUUID, MapCanvas canvas, View view) {
         if (!_enabled) {
             return;
         }
-        BufferedImage depthImage = depthToGrayscaleImage(canvas);
-        if (depthImage == null) {
+        short[] depth = canvas.getDepthBuffer();
+        if (depth == null) {
             return;
         }
         synchronized (_saveTask) {
-            _cache.put(mapUUID, new Item(toJavaImageIndexed(canvas), depthImage));
+            _cache.put(mapUUID, new Item(canvas.getWidth(), canvas.getHeight(), view,
+                    canvas.getBuffer().clone(), depth.clone()));
             _saveTask.notify();
             if (!_saveTask.isRunning()) {
                 _saveTask.start();
@@ -128,68 +250,76 @@ public class MapCanvasCache {
         }
     }
 
-    public boolean load(UUID mapUUID, MapCanvas canvas) {
+    /**
+     * Loads the color and depth buffers of a canvas stored in the cache onto a canvas.
+     * If the canvas was resized, or the view changed since it was stored, nothing is loaded.
+     *
+     * @param mapUUID Unique id of the map
+     * @param canvas Canvas to load onto
+     * @param view View the canvas is rendered with
+     * @return True if loaded, False if not
+     */
+    public boolean load(UUID mapUUID, MapCanvas canvas, View view) {
         if (!_enabled) {
             return false;
         }
         Item item = _cache.get(mapUUID);
         if (item == null) {
             // Load from disk (sync), is slower!
-            // Do not put it in cache
-            File colorFile = getColorFile(mapUUID);
-            File depthFile = getDepthFile(mapUUID);
-            if (!colorFile.exists() || !depthFile.exists()) {
-                return false;
-            }
+            item = readItem(mapUUID);
+        }
+        return apply(mapUUID, item, canvas, view);
+    }
 
-            // Read the images from the cache folder while NOT USING THE CACHE
-            BufferedImage color, depth;
-            boolean useCacheOld = ImageIO.getUseCache();
-            try {
-                ImageIO.setUseCache(false);
-                try {
-                    color = ImageIO.read(colorFile);
-                } catch (IOException e) {
-                    _plugin.getLogger().log(Level.SEVERE, "Failed to load color data of {" + mapUUID.toString() + "} from cache", e);
-                    return false;
-                }
-                try {
-                    depth = ImageIO.read(depthFile);
-                } catch (IOException e) {
-                    _plugin.getLogger().log(Level.SEVERE, "Failed to load depth data of {" + mapUUID.toString() + "} from cache", e);
-                    return false;
-                }
-            } finally {
-                ImageIO.setUseCache(useCacheOld);
-            }
-            if (color.getWidth() != depth.getWidth() || color.getHeight() != depth.getHeight()) {
-                _plugin.getLogger().log(Level.SEVERE, "Failed to load data of {" + mapUUID.toString() + "} from cache: image resolutions don't match!");
-                return false;
-            }
-            item = new Item(color, depth);
+    /**
+     * Reads the color and depth buffers of a canvas stored in the cache. If they are
+     * not in memory, they are read from disk on a background thread. Once done, the
+     * result must be written to the canvas on the main thread using
+     * {@link #apply(UUID, Item, MapCanvas, View)}.
+     *
+     * @param mapUUID Unique id of the map
+     * @return future completed with the stored data, or with null if nothing is stored
+     */
+    public CompletableFuture<Item> loadAsync(UUID mapUUID) {
+        if (!_enabled) {
+            return CompletableFuture.completedFuture(null);
+        }
+        Item item = _cache.get(mapUUID);
+        if (item != null) {
+            return CompletableFuture.completedFuture(item);
         }
+        return CompletableFuture.supplyAsync(() -> readItem(mapUUID), _loadExecutor);
+    }
 
-        // Verify the buffers are at all compatible. If the map was resized, ignore the data and regenerate.
-        if (item.color.getWidth() != canvas.getWidth() || item.color.getHeight() != canvas.getHeight()) {
+    /**
+     * Writes the color and depth buffers of a canvas stored in the cache onto a canvas.
+     * If the canvas was resized, or the view changed since it was stored, nothing is written.
+     *
+     * @param mapUUID Unique id of the map
+     * @param item Stored data, null if nothing is stored
+     * @param canvas Canvas to write to
+     * @param view View the canvas is rendered with
+     * @return True if written, False if not
+     */
+    public boolean apply(UUID mapUUID, Item item, MapCanvas canvas, View view) {
+        if (item == null) {
             return false;
         }
 
-        // Decode the data in the images
-        DataBufferByte color_buffer = CommonUtil.tryCast(item.color.getRaster().getDataBuffer(), DataBufferByte.class);
-        DataBufferUShort depth_buffer = CommonUtil.tryCast(item.depth.getRaster().getDataBuffer(), DataBufferUShort.class);
-        if (color_buffer == null) {
-            _plugin.getLogger().log(Level.SEVERE, "Failed to load color data of {" + mapUUID.toString() + "} from cache: invalid bit format!");
+        // Verify the buffers are at all compatible. If the map was resized, ignore the data and regenerate.
+        if (item.width != canvas.getWidth() || item.height != canvas.getHeight()) {
+            return false;
         }
-        if (depth_buffer == null) {
-            _plugin.getLogger().log(Level.SEVERE, "Failed to load depth data of {" + mapUUID.toString() + "} from cache: invalid bit format!");
+        if (item.view != null && !item.view.equals(view)) {
+            return false;
         }
 
         // Write it directly to the canvas layer
         try {
             canvas.setDrawDepth(MapCanvas.MAX_DEPTH);
             short[] canvas_depth = canvas.getDepthBuffer();
-            System.arraycopy(depth_buffer.getData(), 0, canvas_depth, 0, canvas_depth.length);
-            canvas.writePixels(0, 0, item.color.getWidth(), item.color.getHeight(), color_buffer.getData());
+            System.arraycopy(item.depth, 0, canvas_depth, 0, canvas_depth.length);
+            canvas.writePixels(0, 0, item.width, item.height, item.color);
             return true;
         } catch (Throwable t) {
             _plugin.getLogger().log(Level.SEVERE, "Failed to load data of {" + mapUUID.toString() + "} from cache", t);
@@ -197,11 +327,104 @@ public class MapCanvasCache {
         }
     }
 
-    private File getColorFile(UUID mapUUID) {
+    /**
+     * Reads the data of a map from disk, and keeps it in memory
+     * in case the map is attached again soon. A file of the map itself
+     * is read before the packed file, since it is only there when saved
+     * after the map was packed, or when it was not packed yet.
+     */
+    private Item readItem(UUID mapUUID) {
+        Item item;
+        File file = getCacheFile(mapUUID);
+        try {
+            byte[] packedData;
+            MapCanvasPackedStore packedStore;
+            if (file.exists()) {
+                item = MapCanvasCacheFile.decode(Files.toByteArray(file));
+            } else if ((packedStore = _packedStore) != null && (packedData = packedStore.read(mapUUID)) != null) {
+                item = MapCanvasCacheFile.decode(packedData);
+            } else {
+                item = null;
+            }
+        } catch (IOException e) {
+            _plugin.getLogger().log(Level.SEVERE, "Failed to load data of {" + mapUUID.toString() + "} from cache", e);
+            return null;
+        }
+        if (item == null) {
+            // Is saved in the new format once the display saves it again
+            item = readLegacyItem(mapUUID);
+            if (item == null) {
+                return null;
+            }
+        }
+
+        // Is already on disk, so can be evicted right away
+        // Don't replace data stored while this was being read
+        item.saved.set(true);
+        if (_enabled) {
+            _cache.putIfAbsent(mapUUID, item);
+        }
+        return item;
+    }
+
+    // Reads the GIF color and 16-bit PNG depth images stored by older versions of Maplands
+    private Item readLegacyItem(UUID mapUUID) {
+        File colorFile = getLegacyColorFile(mapUUID);
+        File depthFile = getLegacyDepthFile(mapUUID);
+        if (!colorFile.exists() || !depthFile.exists()) {
+            return null;
+        }
+
+        // Read the images from the cache folder while NOT USING THE CACHE
+        BufferedImage color, depth;
+        boolean useCacheOld = ImageIO.getUseCache();
+        try {
+            ImageIO.setUseCache(false);
+            try {
+                color = ImageIO.read(colorFile);
+            } catch (IOException e) {
+                _plugin.getLogger().log(Level.SEVERE, "Failed to load color data of {" + mapUUID.toString() + "} from cache", e);
+                return null;
+            }
+            try {
+                depth = ImageIO.read(depthFile);
+            } catch (IOException e) {
+                _plugin.getLogger().log(Level.SEVERE, "Failed to load depth data of {" + mapUUID.toString() + "} from cache", e);
+                return null;
+            }
+        } finally {
+            ImageIO.setUseCache(useCacheOld);
+        }
+        if (color.getWidth() != depth.getWidth() || color.getHeight() != depth.getHeight()) {
+            _plugin.getLogger().log(Level.SEVERE, "Failed to load data of {" + mapUUID.toString() + "} from cache: image resolutions don't match!");
+            return null;
+        }
+
+        // Decode the data in the images
+        DataBufferByte color_buffer = CommonUtil.tryCast(color.getRaster().getDataBuffer(), DataBufferByte.class);
+        DataBufferUShort depth_buffer = CommonUtil.tryCast(depth.getRaster().getDataBuffer(), DataBufferUShort.class);
+        if (color_buffer == null) {
+            _plugin.getLogger().log(Level.SEVERE, "Failed to load color data of {" + mapUUID.toString() + "} from cache: invalid bit format!");
+            return null;
+        }
+        if (depth_buffer == null) {
+            _plugin.getLogger().log(Level.SEVERE, "Failed to load depth data of {" + mapUUID.toString() + "} from cache: invalid bit format!");
+            return null;
+        }
+
+        // The view was not stored, so it is assumed to match
+        return new Item(color.getWidth(), color.getHeight(), null, color_buffer.getData(), depth_buffer.getData());
+    }
+
+    private File getCacheFile(UUID mapUUID) {
+        return new File(_cacheFolder, mapUUID.toString() + ".mlc");
+    }
+
+    private File getLegacyColorFile(UUID mapUUID) {
         return new File(_cacheFolder, mapUUID.toString() + "_color.gif");
     }
 
-    private File getDepthFile(UUID mapUUID) {
+    private File getLegacyDepthFile(UUID mapUUID) {
         return new File(_cacheFolder, mapUUID.toString() + "_depth.png");
     }
 
@@ -220,86 +443,103 @@ public class MapCanvasCache {
         return image;
     }
 
-    //TODO: We no longer need this once we depend on a version of BKCommonLib that always has this method
-    //      The fallback implementation can then be removed
-    private static Function<MapCanvas, BufferedImage> toJavaImageIndexedMethod = null;
-    public static BufferedImage toJavaImageIndexed(MapCanvas canvas) {
-        if (toJavaImageIndexedMethod == null) {
-            if (SafeMethod.contains(MapCanvas.class, "toJavaImageIndexed")) {
-                final SafeMethod<BufferedImage> method = new SafeMethod<BufferedImage>(MapCanvas.class, "toJavaImageIndexed");
-                toJavaImageIndexedMethod = (c) -> { return method.invoke(c); };
-            } else {
-                // Implement workaround
-                final IndexColorModel colorModel;
-                {
-                    int num_colors = 0;
-                    byte[] r = new byte[256];
-                    byte[] g = new byte[256];
-                    byte[] b = new byte[256];
-                    byte[] a = new byte[256];
-                    for (int i = 0; i < 256; i++) {
-                        Color c = MapColorPalette.getRealColor(i);
-                        if (c.getAlpha() >= 128) {
-                            num_colors = (i + 1);
-                            r[i] = (byte) c.getRed();
-                            g[i] = (byte) c.getGreen();
-                            b[i] = (byte) c.getBlue();
-                            a[i] = (byte) c.getAlpha();
-                        }
-                    }
-                    colorModel = new IndexColorModel(8, num_colors, r, g, b, a);
-                }
-                toJavaImageIndexedMethod = (c) -> {
-                    byte[] buffer = c.getBuffer().clone(); //Note: readPixels() was bugged on an older version of BKCommonLib!
-                    int width = c.getWidth();
-                    int height = c.getHeight();
-                    java.awt.image.DataBufferByte data = new java.awt.image.DataBufferByte(buffer, buffer.length);
-                    WritableRaster raster = Raster.createInterleavedRaster(data, width, height, width, 1, new int[] {0}, null);
-                    return new BufferedImage(colorModel, raster, false, null);
-                };
-            }
-        }
-        return toJavaImageIndexedMethod.apply(canvas);
-    }
-
-    public static boolean writeAndVerifyPNG(BufferedImage image, File outputFile) throws IOException {
-        IOException lastException = null;
-        for (int n = 0; n < 10; n++) {
-            try (ByteArrayOutputStream stream = new ByteArrayOutputStream()) {
-                if (!ImageIO.write(image, "png", stream)) {
-                    continue;
-                }
-                byte[] bytes = stream.toByteArray();
-                if (n > 0) {
-                    try {
-                        Thread.sleep(10);
-                    } catch (InterruptedException e) {}
-                }
-                if (ImageIO.read(new ByteArrayInputStream(bytes)) != null) {
-                    Files.write(bytes, outputFile);
-                    return true;
-                }
-            } catch (IOException e) {
-                lastException = e;
-            }
-        }
-        if (lastException != null) {
-            throw lastException;
-        }
-        return false;
-    }
-
+    /**
+     * The color and depth buffers of a canvas, stored in the cache
+     */
     public static class Item {
-        public final BufferedImage color;
-        public final BufferedImage depth;
+        public final int width;
+        public final int height;
+        /** View the canvas was rendered with, null if not known */
+        public final View view;
+        public final byte[] color;
+        public final short[] depth;
         public final long created;
         public final AtomicBoolean saved;
 
-        private Item(BufferedImage color, BufferedImage depth) {
+        public Item(int width, int height, View view, byte[] color, short[] depth) {
+            this.width = width;
+            this.height = height;
+            this.view = view;
             this.color = color;
             this.depth = depth;
             this.created = System.currentTimeMillis();
             this.saved = new AtomicBoolean(false);
         }
     }
+
+    /**
+     * The view parameters a canvas was rendered with. Data stored in the cache
+     * is only loaded when the view of the map is still the same.
+     */
+    public static final class View {
+        public final String world;
+        public final BlockFace facing;
+        public final ZoomLevel zoom;
+        public final int x, y, z;
+
+        public View(String world, BlockFace facing, ZoomLevel zoom, int x, int y, int z) {
+            this.world = world;
+            this.facing = facing;
+            this.zoom = zoom;
+            this.x = x;
+            this.y = y;
+            this.z = z;
+        }
+
+        /**
+         * Writes this view to a stream
+         *
+         * @param out Stream to write to
+         * @throws IOException If writing fails
+         */
+        public void write(DataOutput out) throws IOException {
+            out.writeUTF(this.world);
+            out.writeUTF(this.facing.name());
+            out.writeUTF(this.zoom.name());
+            out.writeInt(this.x);
+            out.writeInt(this.y);
+            out.writeInt(this.z);
+        }
+
+        /**
+         * Reads a view written using {@link #write(DataOutput)}
+         *
+         * @param in Stream to read from
+         * @return view
+         * @throws IOException If reading fails, or the data is invalid
+         */
+        public static View read(DataInput in) throws IOException {
+            String world = in.readUTF();
+            String facingName = in.readUTF();
+            String zoomName = in.readUTF();
+            int x = in.readInt();
+            int y = in.readInt();
+            int z = in.readInt();
+            try {
+                return new View(world, BlockFace.valueOf(facingName), ZoomLevel.valueOf(zoomName), x, y, z);
+            } catch (IllegalArgumentException ex) {
+                throw new IOException("Invalid view facing or zoom: " + facingName + ", " + zoomName);
+            }
+        }
+
+        @Override
+        public int hashCode() {
+            return this.world.hashCode() + 31 * (this.x + 31 * (this.y + 31 * this.z));
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (o == this) {
+                return true;
+            } else if (o instanceof View) {
+                View other = (View) o;
+                return this.world.equals(other.world) &&
+                       this.facing == other.facing &&
+                       this.zoom == other.zoom &&
+                       this.x == other.x && this.y == other.y && this.z == other.z;
+            } else {
+                return false;
+            }
+        }
+    }
 }
@@ -0,0 +1,210 @@
+package com.bergerkiller.bukkit.maplands;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Encodes and decodes the color and depth buffers of a map canvas stored in the cache.
+ * The format is:
+ * <ul>
+ * <li>Magic number and format version</li>
+ * <li>Width and height of the canvas</li>
+ * <li>View the canvas was rendered with (world, facing, zoom and start block)</li>
+ * <li>Deflate-compressed payload: the color bytes, followed by the depth residuals</li>
+ * <li>CRC32 checksum of all data before it</li>
+ * </ul>
+ * Depth values are not stored as-is. Each depth value is predicted from the pixels left,
+ * above and above-left of it, and only the difference with the prediction is stored.
+ * Surfaces of blocks are flat, so inside a surface the prediction is nearly always exact.
+ * The differences are stored as two planes of bytes, first all the low bytes and then
+ * all the high bytes, which are mostly zero. This compresses a lot better than the raw
+ * depth values.
+ * The checksum is verified when decoding, so that a file that was only partially
+ * written, or corrupted otherwise, is never loaded onto a map.
+ */
+public class MapCanvasCacheFile {
+    /** Magic number at the start of every file, the characters 'MLCC' */
+    public static final int MAGIC = 0x4D4C4343;
+    public static final int VERSION = 2;
+    /** Version that stored the depth values as-is, still supported for decoding */
+    private static final int VERSION_RAW_DEPTH = 1;
+
+    /**
+     * Encodes canvas data
+     *
+     * @param data Canvas data to encode
+     * @return encoded bytes
+     */
+    public static byte[] encode(MapCanvasCache.Item data) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(data.color.length);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+            out.writeShort(data.width);
+            out.writeShort(data.height);
+            data.view.write(out);
+
+            // Color bytes followed by the depth residuals, compressed in one go
+            byte[] payload = new byte[data.color.length + 2 * data.depth.length];
+            System.arraycopy(data.color, 0, payload, 0, data.color.length);
+            encodeDepth(data.depth, data.width, payload, data.color.length);
+
+            // Best speed, since the color and depth data are very repetitive anyway
+            Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+            try (DeflaterOutputStream compressed = new DeflaterOutputStream(new NonClosingOutputStream(out), deflater, 8192)) {
+                compressed.write(payload);
+            } finally {
+                deflater.end();
+            }
+
+            CRC32 crc = new CRC32();
+            crc.update(bytes.toByteArray(), 0, bytes.size());
+            out.writeInt((int) crc.getValue());
+            return bytes.toByteArray();
+        } catch (IOException ex) {
+            // Not thrown by in-memory streams
+            throw new IllegalStateException("Failed to encode canvas data", ex);
+        }
+    }
+
+    /**
+     * Decodes canvas data encoded using {@link #encode(MapCanvasCache.Item)}
+     *
+     * @param encoded Encoded bytes
+     * @return decoded canvas data
+     * @throws IOException If the data is corrupt, or of an unsupported version
+     */
+    public static MapCanvasCache.Item decode(byte[] encoded) throws IOException {
+        if (encoded.length < 13) {
+            throw new IOException("Data is truncated");
+        }
+
+        // Verify checksum before doing anything else
+        CRC32 crc = new CRC32();
+        crc.update(encoded, 0, encoded.length - 4);
+        int expectedCRC = ((encoded[encoded.length - 4] & 0xFF) << 24) |
+                          ((encoded[encoded.length - 3] & 0xFF) << 16) |
+                          ((encoded[encoded.length - 2] & 0xFF) << 8) |
+                          (encoded[encoded.length - 1] & 0xFF);
+        if ((int) crc.getValue() != expectedCRC) {
+            throw new IOException("Checksum mismatch, data is corrupt");
+        }
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(encoded, 0, encoded.length - 4));
+        if (in.readInt() != MAGIC) {
+            throw new IOException("Not a map cache file");
+        }
+        int version = in.readUnsignedByte();
+        if (version != VERSION && version != VERSION_RAW_DEPTH) {
+            throw new IOException("Unsupported map cache version: " + version);
+        }
+        int width = in.readUnsignedShort();
+        int height = in.readUnsignedShort();
+        MapCanvasCache.View view = MapCanvasCache.View.read(in);
+
+        int count = width * height;
+        byte[] payload = new byte[3 * count];
+        try (DataInputStream compressed = new DataInputStream(new InflaterInputStream(in))) {
+            compressed.readFully(payload);
+        }
+
+        byte[] color = Arrays.copyOf(payload, count);
+        short[] depth = new short[count];
+        if (version == VERSION_RAW_DEPTH) {
+            ByteBuffer.wrap(payload, count, 2 * count).asShortBuffer().get(depth);
+        } else {
+            decodeDepth(payload, count, depth, width);
+        }
+        return new MapCanvasCache.Item(width, height, view, color, depth);
+    }
+
+    /**
+     * Stores the differences between the depth values and their predictions
+     * as a plane of low bytes followed by a plane of high bytes
+     */
+    private static void encodeDepth(short[] depth, int width, byte[] out, int offset) {
+        int count = depth.length;
+        for (int i = 0; i < count; i++) {
+            int residual = zigZag((short) (depth[i] - predictDepth(depth, width, i)));
+            out[offset + i] = (byte) residual;
+            out[offset + count + i] = (byte) (residual >> 8);
+        }
+    }
+
+    /**
+     * Reverses {@link #encodeDepth(short[], int, byte[], int)}. Depth values are
+     * decoded in the same order, so the pixels used for the prediction are known.
+     */
+    private static void decodeDepth(byte[] in, int offset, short[] depth, int width) {
+        int count = depth.length;
+        for (int i = 0; i < count; i++) {
+            int residual = (in[offset + i] & 0xFF) | ((in[offset + count + i] & 0xFF) << 8);
+            depth[i] = (short) (predictDepth(depth, width, i) + unZigZag(residual));
+        }
+    }
+
+    /**
+     * Predicts the depth value of a pixel from the pixels left (a), above (b) and
+     * above-left (c) of it, using the median edge detector of LOCO-I. On an edge
+     * it picks the neighbour on the same side of the edge, otherwise it assumes
+     * the depth changes at the same rate as it did for the neighbours.
+     */
+    private static int predictDepth(short[] depth, int width, int i) {
+        int x = i % width;
+        if (i < width) {
+            return (x == 0) ? 0 : depth[i - 1]; // First row
+        } else if (x == 0) {
+            return depth[i - width]; // First column
+        }
+
+        int a = depth[i - 1];
+        int b = depth[i - width];
+        int c = depth[i - width - 1];
+        if (c >= Math.max(a, b)) {
+            return Math.min(a, b);
+        } else if (c <= Math.min(a, b)) {
+            return Math.max(a, b);
+        } else {
+            return a + b - c;
+        }
+    }
+
+    // Maps small negative and positive differences to small unsigned values
+    private static int zigZag(short value) {
+        return ((value << 1) ^ (value >> 15)) & 0xFFFF;
+    }
+
+    private static int unZigZag(int value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    // Closing the compressed stream must not close the stream the checksum is written to after
+    private static final class NonClosingOutputStream extends FilterOutputStream {
+
+        public NonClosingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+    }
+}
@@ -0,0 +1,193 @@
+package com.bergerkiller.bukkit.maplands;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the canvas data of recently used maps in memory, so that attaching them
+ * again does not have to read them from disk. The total size of the data kept in
+ * memory is limited. When exceeded, the least recently used entries are evicted,
+ * after which they are only stored on disk.<br>
+ * <br>
+ * Entries that are not saved to disk yet are never evicted. They are evicted once
+ * saved, if the limit is still exceeded. All methods are thread-safe.
+ */
+public class MapCanvasMemoryCache {
+    /** Estimated memory used by an entry besides the color and depth buffers */
+    private static final int ENTRY_OVERHEAD = 128;
+    private final LinkedHashMap<UUID, MapCanvasCache.Item> items = new LinkedHashMap<UUID, MapCanvasCache.Item>(16, 0.75f, true);
+    private long maxBytes = 64L * 1024 * 1024;
+    private long bytes = 0;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * Sets the maximum number of bytes of canvas data kept in memory
+     *
+     * @param maxBytes Maximum bytes, 0 to only keep data in memory until saved
+     */
+    public synchronized void setMaxBytes(long maxBytes) {
+        this.maxBytes = Math.max(0L, maxBytes);
+        this.evictSaved();
+    }
+
+    /**
+     * Gets the maximum number of bytes of canvas data kept in memory
+     *
+     * @return maximum bytes
+     */
+    public synchronized long getMaxBytes() {
+        return this.maxBytes;
+    }
+
+    /**
+     * Gets the number of bytes of canvas data kept in memory right now
+     *
+     * @return bytes
+     */
+    public synchronized long getBytes() {
+        return this.bytes;
+    }
+
+    /**
+     * Gets the number of entries kept in memory right now
+     *
+     * @return entry count
+     */
+    public synchronized int size() {
+        return this.items.size();
+    }
+
+    /**
+     * Gets the number of times canvas data was found in memory
+     *
+     * @return hit count
+     */
+    public long getHits() {
+        return this.hits.get();
+    }
+
+    /**
+     * Gets the number of times canvas data was not found in memory
+     *
+     * @return miss count
+     */
+    public long getMisses() {
+        return this.misses.get();
+    }
+
+    /**
+     * Gets the number of entries evicted because the memory limit was exceeded
+     *
+     * @return eviction count
+     */
+    public long getEvictions() {
+        return this.evictions.get();
+    }
+
+    /**
+     * Gets the canvas data of a map, marking it as most recently used
+     *
+     * @param mapUUID Unique id of the map
+     * @return canvas data, null if not kept in memory
+     */
+    public synchronized MapCanvasCache.Item get(UUID mapUUID) {
+        MapCanvasCache.Item item = this.items.get(mapUUID);
+        (item == null ? this.misses : this.hits).incrementAndGet();
+        return item;
+    }
+
+    /**
+     * Stores the canvas data of a map, replacing previous data
+     *
+     * @param mapUUID Unique id of the map
+     * @param item Canvas data
+     */
+    public synchronized void put(UUID mapUUID, MapCanvasCache.Item item) {
+        MapCanvasCache.Item prev = this.items.put(mapUUID, item);
+        if (prev != null) {
+            this.bytes -= getByteSize(prev);
+        }
+        this.bytes += getByteSize(item);
+        this.evictSaved();
+    }
+
+    /**
+     * Stores the canvas data of a map, if no data is stored for it yet
+     *
+     * @param mapUUID Unique id of the map
+     * @param item Canvas data
+     */
+    public synchronized void putIfAbsent(UUID mapUUID, MapCanvasCache.Item item) {
+        if (!this.items.containsKey(mapUUID)) {
+            this.put(mapUUID, item);
+        }
+    }
+
+    /**
+     * Gets all entries that are not saved to disk yet
+     *
+     * @return unsaved entries
+     */
+    public synchronized List<Map.Entry<UUID, MapCanvasCache.Item>> getUnsaved() {
+        List<Map.Entry<UUID, MapCanvasCache.Item>> unsaved = new ArrayList<Map.Entry<UUID, MapCanvasCache.Item>>();
+        for (Map.Entry<UUID, MapCanvasCache.Item> entry : this.items.entrySet()) {
+            if (!entry.getValue().saved.get()) {
+                unsaved.add(new AbstractMap.SimpleImmutableEntry<UUID, MapCanvasCache.Item>(entry));
+            }
+        }
+        return unsaved;
+    }
+
+    /**
+     * Evicts entries that are saved to disk, least recently used first,
+     * until the memory limit is no longer exceeded. Should be called after
+     * saving entries.
+     */
+    public synchronized void evictSaved() {
+        Iterator<MapCanvasCache.Item> iter = this.items.values().iterator();
+        while (this.bytes > this.maxBytes && iter.hasNext()) {
+            MapCanvasCache.Item item = iter.next();
+            if (item.saved.get()) {
+                iter.remove();
+                this.bytes -= getByteSize(item);
+                this.evictions.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Removes entries that are saved to disk and were created before a time
+     *
+     * @param expireTime {@link System#currentTimeMillis()} before which entries expire
+     */
+    public synchronized void removeExpired(long expireTime) {
+        Iterator<MapCanvasCache.Item> iter = this.items.values().iterator();
+        while (iter.hasNext()) {
+            MapCanvasCache.Item item = iter.next();
+            if (item.saved.get() && item.created < expireTime) {
+                iter.remove();
+                this.bytes -= getByteSize(item);
+            }
+        }
+    }
+
+    /**
+     * Removes all entries
+     */
+    public synchronized void clear() {
+        this.items.clear();
+        this.bytes = 0;
+    }
+
+    private static long getByteSize(MapCanvasCache.Item item) {
+        return ENTRY_OVERHEAD + item.color.length + 2L * item.depth.length;
+    }
+}
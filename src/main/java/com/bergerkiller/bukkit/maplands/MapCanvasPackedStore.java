@@ -0,0 +1,503 @@
+package com.bergerkiller.bukkit.maplands;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+import com.google.common.io.Files;
+
+/**
+ * Stores the cached data of many maps in a single large data file, instead of a
+ * file per map. Like region files, the data file is divided into sectors of 4096
+ * bytes. Every map is stored as a record of consecutive sectors, starting with the
+ * unique id of the map and the length of the data. Which sectors belong to which
+ * map is stored in a separate index file.<br>
+ * <br>
+ * When a map is written again, the new record is written to free sectors, and the
+ * sectors of the old record are freed. Freed sectors are only re-used once the
+ * index no longer referring to them is written using {@link #flush()}, so that
+ * after a crash the index never refers to a record of another map. When more than
+ * half of the data file is free space, the records are moved to the start of the
+ * file and the file is shrunk.<br>
+ * <br>
+ * Reads are done using positional reads on a shared file channel, and can happen
+ * from multiple threads at the same time. Writes are done one at a time. Once closed,
+ * reads find nothing, so threads still reading while the store closes don't fail.<br>
+ * <br>
+ * A store can be opened read-only, to keep reading maps stored before when maps
+ * are no longer packed. It is then never modified.
+ */
+public class MapCanvasPackedStore {
+    public static final int SECTOR_SIZE = 4096;
+    /** Unique id (16 bytes) followed by the data length (4 bytes) */
+    private static final int RECORD_HEADER_SIZE = 20;
+    /** Magic number at the start of the index file, the characters 'MLPI' */
+    private static final int INDEX_MAGIC = 0x4D4C5049;
+    private static final int INDEX_VERSION = 1;
+    /** Compacting is not worth it while only this many sectors are free */
+    private static final int MIN_COMPACT_FREE_SECTORS = 64;
+    private final File dataFile;
+    private final File indexFile;
+    private final FileChannel channel;
+    private final boolean readOnly;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Map<UUID, Record> records = new HashMap<UUID, Record>();
+    private final BitSet usedSectors = new BitSet();
+    private final BitSet pendingFreeSectors = new BitSet();
+    private int fileSectors = 0;
+    private boolean indexChanged = false;
+    private boolean closed = false;
+
+    /**
+     * Opens a packed store, creating it if it does not exist yet
+     *
+     * @param folder Folder to store the data and index file in
+     * @param name Name of the data and index file, without extension
+     * @throws IOException If opening the data file fails
+     */
+    public MapCanvasPackedStore(File folder, String name) throws IOException {
+        this(folder, name, false);
+    }
+
+    /**
+     * Opens a packed store. When opened read-only, the store must already exist,
+     * see {@link #exists(File, String)}.
+     *
+     * @param folder Folder to store the data and index file in
+     * @param name Name of the data and index file, without extension
+     * @param readOnly True to only read maps stored before, and never modify the files
+     * @throws IOException If opening the data file fails
+     */
+    public MapCanvasPackedStore(File folder, String name, boolean readOnly) throws IOException {
+        this.dataFile = new File(folder, name + ".mlpack");
+        this.indexFile = new File(folder, name + ".mlindex");
+        this.readOnly = readOnly;
+        if (readOnly) {
+            this.channel = FileChannel.open(this.dataFile.toPath(), StandardOpenOption.READ);
+        } else {
+            folder.mkdirs();
+            this.channel = FileChannel.open(this.dataFile.toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        }
+        this.fileSectors = (int) ((this.channel.size() + SECTOR_SIZE - 1) / SECTOR_SIZE);
+        this.readIndex();
+    }
+
+    /**
+     * Gets whether a packed store was created before in a folder
+     *
+     * @param folder Folder with the data and index file
+     * @param name Name of the data and index file, without extension
+     * @return True if both the data and index file exist
+     */
+    public static boolean exists(File folder, String name) {
+        return new File(folder, name + ".mlpack").exists() && new File(folder, name + ".mlindex").exists();
+    }
+
+    /**
+     * Gets whether this store was opened read-only
+     *
+     * @return True if read-only
+     */
+    public boolean isReadOnly() {
+        return this.readOnly;
+    }
+
+    /**
+     * Gets the number of maps stored
+     *
+     * @return map count
+     */
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return this.records.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Gets the size of the data file in sectors
+     *
+     * @return file sector count
+     */
+    public int getFileSectors() {
+        lock.readLock().lock();
+        try {
+            return this.fileSectors;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Gets the number of sectors of the data file used by the records of maps
+     *
+     * @return used sector count
+     */
+    public int getUsedSectors() {
+        lock.readLock().lock();
+        try {
+            int used = 0;
+            for (Record record : this.records.values()) {
+                used += record.sectorCount;
+            }
+            return used;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Reads the data stored for a map
+     *
+     * @param mapUUID Unique id of the map
+     * @return stored data, or null if nothing is stored for the map or the store is closed
+     * @throws IOException If reading fails
+     */
+    public byte[] read(UUID mapUUID) throws IOException {
+        lock.readLock().lock();
+        try {
+            Record record = this.records.get(mapUUID);
+            if (record == null || this.closed) {
+                return null;
+            }
+
+            ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+            readFully(header, (long) record.sectorOffset * SECTOR_SIZE);
+            header.flip();
+            UUID storedUUID = new UUID(header.getLong(), header.getLong());
+            int length = header.getInt();
+            if (!storedUUID.equals(mapUUID) || length < 0 || (RECORD_HEADER_SIZE + length) > record.sectorCount * SECTOR_SIZE) {
+                return null; // Overwritten after a crash, treat as not stored
+            }
+
+            ByteBuffer data = ByteBuffer.allocate(length);
+            readFully(data, (long) record.sectorOffset * SECTOR_SIZE + RECORD_HEADER_SIZE);
+            return data.array();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Stores the data of a map, replacing data stored before
+     *
+     * @param mapUUID Unique id of the map
+     * @param data Data to store
+     * @throws IOException If writing fails
+     */
+    public void write(UUID mapUUID, byte[] data) throws IOException {
+        int sectorCount = (RECORD_HEADER_SIZE + data.length + SECTOR_SIZE - 1) / SECTOR_SIZE;
+        ByteBuffer buffer = ByteBuffer.allocate(RECORD_HEADER_SIZE + data.length);
+        buffer.putLong(mapUUID.getMostSignificantBits());
+        buffer.putLong(mapUUID.getLeastSignificantBits());
+        buffer.putInt(data.length);
+        buffer.put(data);
+        buffer.flip();
+
+        lock.writeLock().lock();
+        try {
+            this.checkWritable();
+            int sectorOffset = this.allocate(sectorCount);
+            writeFully(buffer, (long) sectorOffset * SECTOR_SIZE);
+            this.freeRecord(this.records.put(mapUUID, new Record(sectorOffset, sectorCount)));
+            this.indexChanged = true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Removes the data stored for a map
+     *
+     * @param mapUUID Unique id of the map
+     * @throws IOException If the store is read-only or closed
+     */
+    public void remove(UUID mapUUID) throws IOException {
+        lock.writeLock().lock();
+        try {
+            this.checkWritable();
+            Record record = this.records.remove(mapUUID);
+            if (record != null) {
+                this.freeRecord(record);
+                this.indexChanged = true;
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Makes sure all data written is stored on disk, and writes the index.
+     * Afterwards sectors freed since the previous flush can be re-used, and
+     * the data file is compacted if more than half of it is free space.
+     *
+     * @throws IOException If writing fails
+     */
+    public void flush() throws IOException {
+        lock.writeLock().lock();
+        try {
+            this.checkWritable();
+            if (this.indexChanged) {
+                this.channel.force(false);
+                this.writeIndex();
+                this.indexChanged = false;
+                this.usedSectors.andNot(this.pendingFreeSectors);
+                this.pendingFreeSectors.clear();
+            }
+
+            int freeSectors = this.fileSectors - this.usedSectors.cardinality();
+            if (freeSectors >= MIN_COMPACT_FREE_SECTORS && freeSectors > (this.fileSectors >> 1)) {
+                this.compact();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Writes the index, and closes the data file. The store can no longer
+     * be used afterwards, reads find nothing.
+     *
+     * @throws IOException If writing fails
+     */
+    public void close() throws IOException {
+        lock.writeLock().lock();
+        try {
+            if (this.closed) {
+                return;
+            }
+            this.closed = true;
+            if (this.indexChanged && !this.readOnly) {
+                this.channel.force(false);
+                this.writeIndex();
+                this.indexChanged = false;
+            }
+            this.channel.close();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Moves all records to the start of the data file, and shrinks the file.
+     * Records are moved in order of their position, so a record is only ever
+     * moved to sectors before it. If the server crashes while compacting, the
+     * maps whose records were overwritten are no longer found, and are rendered
+     * again.
+     */
+    private void compact() throws IOException {
+        List<Map.Entry<UUID, Record>> sorted = new ArrayList<Map.Entry<UUID, Record>>(this.records.entrySet());
+        sorted.sort(Comparator.comparingInt(e -> e.getValue().sectorOffset));
+
+        Map<UUID, Record> moved = new HashMap<UUID, Record>();
+        int nextSector = 0;
+        try {
+            for (Map.Entry<UUID, Record> entry : sorted) {
+                Record record = entry.getValue();
+                if (record.sectorOffset != nextSector) {
+                    // Only the header and data are moved, the last record ends partway a sector
+                    long position = (long) record.sectorOffset * SECTOR_SIZE;
+                    ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+                    readFully(header, position);
+                    int length = Math.max(0, header.getInt(16));
+                    long recordLength = Math.min((long) RECORD_HEADER_SIZE + length, (long) record.sectorCount * SECTOR_SIZE);
+                    recordLength = Math.min(recordLength, this.channel.size() - position);
+
+                    ByteBuffer buffer = ByteBuffer.allocate((int) recordLength);
+                    readFully(buffer, position);
+                    buffer.flip();
+                    writeFully(buffer, (long) nextSector * SECTOR_SIZE);
+                    moved.put(entry.getKey(), new Record(nextSector, record.sectorCount));
+                }
+                nextSector += record.sectorCount;
+            }
+        } catch (IOException ex) {
+            // Records already moved may have overwritten the old location of other moved records,
+            // so they must refer to where they were moved. The old sectors stay used until the
+            // next compaction, as the index on disk still refers to them.
+            for (Map.Entry<UUID, Record> entry : moved.entrySet()) {
+                Record record = entry.getValue();
+                this.records.put(entry.getKey(), record);
+                this.usedSectors.set(record.sectorOffset, record.sectorOffset + record.sectorCount);
+            }
+            this.indexChanged |= !moved.isEmpty();
+            throw ex;
+        }
+
+        // All records moved, the file now only contains the records, back to back
+        this.records.putAll(moved);
+        this.usedSectors.clear();
+        this.usedSectors.set(0, nextSector);
+        this.pendingFreeSectors.clear();
+        this.indexChanged = true;
+        this.channel.force(false);
+        this.writeIndex();
+        this.indexChanged = false;
+        this.channel.truncate((long) nextSector * SECTOR_SIZE);
+        this.fileSectors = nextSector;
+    }
+
+    /**
+     * Finds the first range of free sectors large enough, or appends them
+     * at the end of the file, and marks them used
+     */
+    private int allocate(int sectorCount) {
+        int offset = 0;
+        while (true) {
+            offset = this.usedSectors.nextClearBit(offset);
+            if (offset >= this.fileSectors) {
+                break; // Append at the end of the file
+            }
+            int end = this.usedSectors.nextSetBit(offset);
+            if (end == -1 || end >= this.fileSectors || (end - offset) >= sectorCount) {
+                break; // Free range is large enough, or reaches the end of the file
+            }
+            offset = end;
+        }
+        this.usedSectors.set(offset, offset + sectorCount);
+        this.fileSectors = Math.max(this.fileSectors, offset + sectorCount);
+        return offset;
+    }
+
+    private void checkWritable() throws IOException {
+        if (this.closed) {
+            throw new IOException("Packed store " + this.dataFile.getName() + " is closed");
+        } else if (this.readOnly) {
+            throw new IOException("Packed store " + this.dataFile.getName() + " is opened read-only");
+        }
+    }
+
+    private void freeRecord(Record record) {
+        if (record != null) {
+            this.pendingFreeSectors.set(record.sectorOffset, record.sectorOffset + record.sectorCount);
+        }
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int n = this.channel.read(buffer, position);
+            if (n < 0) {
+                throw new IOException("Unexpected end of file " + this.dataFile.getName());
+            }
+            position += n;
+        }
+    }
+
+    private void writeFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += this.channel.write(buffer, position);
+        }
+    }
+
+    /**
+     * Reads the index file. If it does not exist or is corrupt, the store is emptied,
+     * since it is not known which records in the data file are up to date.
+     */
+    private void readIndex() throws IOException {
+        if (this.indexFile.exists()) {
+            try {
+                byte[] data = Files.toByteArray(this.indexFile);
+                if (data.length < 4) {
+                    throw new IOException("Index is truncated");
+                }
+                CRC32 crc = new CRC32();
+                crc.update(data, 0, data.length - 4);
+                if ((int) crc.getValue() != ByteBuffer.wrap(data, data.length - 4, 4).getInt()) {
+                    throw new IOException("Index checksum mismatch");
+                }
+
+                DataInputStream in = new DataInputStream(new ByteArrayInputStream(data, 0, data.length - 4));
+                if (in.readInt() != INDEX_MAGIC || in.readUnsignedByte() != INDEX_VERSION) {
+                    throw new IOException("Not a supported index file");
+                }
+                int count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    UUID mapUUID = new UUID(in.readLong(), in.readLong());
+                    Record record = new Record(in.readInt(), in.readInt());
+
+                    // Skip records outside of the file, or that overlap other records
+                    if (record.sectorOffset < 0 || record.sectorCount <= 0 ||
+                        (record.sectorOffset + record.sectorCount) > this.fileSectors ||
+                        this.usedSectors.get(record.sectorOffset, record.sectorOffset + record.sectorCount).cardinality() > 0)
+                    {
+                        this.indexChanged = true;
+                        continue;
+                    }
+                    this.usedSectors.set(record.sectorOffset, record.sectorOffset + record.sectorCount);
+                    this.records.put(mapUUID, record);
+                }
+                return;
+            } catch (IOException ex) {
+                // Corrupt, start over
+                this.records.clear();
+                this.usedSectors.clear();
+            }
+        }
+
+        // No (valid) index, none of the data can be trusted
+        if (this.readOnly) {
+            return;
+        }
+        this.channel.truncate(0);
+        this.fileSectors = 0;
+        this.indexChanged = true;
+    }
+
+    /**
+     * Writes the index to a temporary file, and then replaces the index file
+     */
+    private void writeIndex() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(9 + 24 * this.records.size() + 4);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(INDEX_MAGIC);
+        out.writeByte(INDEX_VERSION);
+        out.writeInt(this.records.size());
+        for (Map.Entry<UUID, Record> entry : this.records.entrySet()) {
+            out.writeLong(entry.getKey().getMostSignificantBits());
+            out.writeLong(entry.getKey().getLeastSignificantBits());
+            out.writeInt(entry.getValue().sectorOffset);
+            out.writeInt(entry.getValue().sectorCount);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(bytes.toByteArray(), 0, bytes.size());
+        out.writeInt((int) crc.getValue());
+
+        File tmpFile = new File(this.indexFile.getParentFile(), this.indexFile.getName() + ".tmp");
+        Files.write(bytes.toByteArray(), tmpFile);
+        if (!tmpFile.renameTo(this.indexFile)) {
+            this.indexFile.delete();
+            if (!tmpFile.renameTo(this.indexFile)) {
+                throw new IOException("Failed to move " + tmpFile.getName() + " to " + this.indexFile.getName());
+            }
+        }
+    }
+
+    private static final class Record {
+        public final int sectorOffset;
+        public final int sectorCount;
+
+        public Record(int sectorOffset, int sectorCount) {
+            this.sectorOffset = sectorOffset;
+            this.sectorCount = sectorCount;
+        }
+    }
+}
@@ -0,0 +1,315 @@
+package com.bergerkiller.bukkit.maplands;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import org.bukkit.block.BlockFace;
+
+import com.bergerkiller.bukkit.common.map.MapBlendMode;
+import com.bergerkiller.bukkit.common.map.MapCanvas;
+import com.bergerkiller.bukkit.common.map.MapTexture;
+import com.bergerkiller.bukkit.maplands.util.Linked2DTile;
+import com.bergerkiller.bukkit.maplands.util.Linked2DTileSet;
+import com.bergerkiller.bukkit.maplands.util.TileFrontBlocks;
+
+/**
+ * A rectangular screen-space area of a display that is rendered independently
+ * of the other areas. Stores its own set of tiles that need drawing and its
+ * own render depth progress, and draws onto a private canvas holding only
+ * the pixels of this area. This allows multiple partitions of the same
+ * display to be rendered in parallel.<br>
+ * <br>
+ * Tiles whose sprite overlaps multiple partitions are drawn by all of them,
+ * each partition only keeping the pixels within its own area. Each partition
+ * also keeps its own records of the front-most opaque blocks, copied from the
+ * display before every render job, and merged back into those of the display
+ * once the job is done.
+ */
+public class MapRenderPartition {
+    /** Width and height of a partition, which is the size of a single map item */
+    public static final int SIZE = 128;
+    public final int x, y, width, height;
+    private final Linked2DTileSet tiles;
+    private final MapTexture canvas;
+    private final MapSliceRenderer renderer;
+    private final TileFrontBlocks frontBlocks;
+    private final int maximumRenderZ;
+    private int renderZ;
+
+    private MapRenderPartition(int x, int y, int width, int height,
+            int minCols, int maxCols, int minRows, int maxRows,
+            MapCanvas layer, IsometricBlockSprites sprites, BlockFace facing,
+            int startX, int startY, int startZ, MaplandsDisplaySnapshots snapshots,
+            int renderZ, int maximumRenderZ)
+    {
+        this.x = x;
+        this.y = y;
+        this.width = width;
+        this.height = height;
+        this.tiles = new Linked2DTileSet(minCols, maxCols, minRows, maxRows);
+        this.canvas = MapTexture.createEmpty(width, height);
+        this.canvas.setDrawDepth(MapCanvas.MAX_DEPTH);
+        this.canvas.setBlendMode(MapBlendMode.NONE);
+        this.canvas.setRelativeBrushMask(sprites.getBrushTexture());
+        this.renderer = new MapSliceRenderer(this.canvas,
+                (layer.getWidth() >> 1) - x, (layer.getHeight() >> 1) - y,
+                sprites, facing, startX, startY, startZ, new BlockSource.FromSnapshots(snapshots));
+        this.frontBlocks = new TileFrontBlocks(minCols, maxCols, minRows, maxRows);
+        this.renderer.setFrontBlocks(this.frontBlocks);
+        this.renderZ = renderZ;
+        this.maximumRenderZ = maximumRenderZ;
+    }
+
+    /**
+     * Gets whether this partition has finished rendering
+     *
+     * @return True if finished
+     */
+    public boolean isFinished() {
+        return this.renderZ > this.maximumRenderZ;
+    }
+
+    /**
+     * Gets the depth level this partition continues rendering at
+     *
+     * @return render depth
+     */
+    public int getRenderZ() {
+        return this.renderZ;
+    }
+
+    /**
+     * Gets the squared distance from a pixel position on the display
+     * to the nearest pixel of this partition
+     *
+     * @param px Pixel x-coordinate
+     * @param py Pixel y-coordinate
+     * @return squared distance, 0 if the position is inside this partition
+     */
+    public double getDistanceSquared(double px, double py) {
+        double dx = Math.max(0.0, Math.max(this.x - px, px - (this.x + this.width)));
+        double dy = Math.max(0.0, Math.max(this.y - py, py - (this.y + this.height)));
+        return dx * dx + dy * dy;
+    }
+
+    /**
+     * Gets whether a tile is drawn by this partition
+     *
+     * @param tx Tile x-coordinate
+     * @param ty Tile y-coordinate
+     * @return True if the tile is within the tile range of this partition
+     */
+    public boolean containsTile(int tx, int ty) {
+        return tx >= this.tiles.getMinX() && tx <= this.tiles.getMaxX() &&
+               ty >= this.tiles.getMinY() && ty <= this.tiles.getMaxY();
+    }
+
+    /**
+     * Gets whether a tile still needs drawing in this partition
+     *
+     * @param tx Tile x-coordinate
+     * @param ty Tile y-coordinate
+     * @return True if the tile is drawn by this partition, and still needs drawing
+     */
+    public boolean needsDrawing(int tx, int ty) {
+        return containsTile(tx, ty) && this.tiles.contains(tx, ty);
+    }
+
+    /**
+     * Schedules a tile to be drawn again starting at a depth level,
+     * if the tile is drawn by this partition
+     *
+     * @param tx Tile x-coordinate
+     * @param ty Tile y-coordinate
+     * @param tz Tile depth to start drawing at
+     */
+    public void invalidateTile(int tx, int ty, int tz) {
+        if (containsTile(tx, ty)) {
+            this.tiles.set(tx, ty);
+            this.renderer.invalidateTile(tx, ty, tz);
+            if (this.renderZ > tz) {
+                this.renderZ = tz;
+            }
+        }
+    }
+
+    /**
+     * Copies the current color and depth information of the area of this
+     * partition from the display layer, and the front-most opaque block records
+     * of its tiles from the display. Must be called on the main thread before
+     * rendering, as the display may have drawn tiles since.
+     *
+     * @param layer Display layer
+     * @param frontBlocks Front-most opaque block records of the display
+     */
+    public void copyFrom(MapCanvas layer, TileFrontBlocks frontBlocks) {
+        this.frontBlocks.copyFrom(frontBlocks);
+        byte[] layerColor = layer.getBuffer();
+        short[] layerDepth = layer.getDepthBuffer();
+        byte[] color = this.canvas.getBuffer();
+        short[] depth = this.canvas.getDepthBuffer();
+        int layerWidth = layer.getWidth();
+        for (int row = 0; row < this.height; row++) {
+            int layerIndex = (this.y + row) * layerWidth + this.x;
+            System.arraycopy(layerColor, layerIndex, color, row * this.width, this.width);
+            if (layerDepth != null) {
+                System.arraycopy(layerDepth, layerIndex, depth, row * this.width, this.width);
+            }
+        }
+    }
+
+    /**
+     * Copies the rendered color and depth information of this partition into
+     * the display layer. Must be called on the main thread after rendering.
+     *
+     * @param layer Display layer
+     */
+    public void copyTo(MapCanvas layer) {
+        layer.setDrawDepth(MapCanvas.MAX_DEPTH);
+        layer.setRelativeBrushMask(null);
+        short[] layerDepth = layer.getDepthBuffer();
+        short[] depth = this.canvas.getDepthBuffer();
+        int layerWidth = layer.getWidth();
+        for (int row = 0; row < this.height; row++) {
+            System.arraycopy(depth, row * this.width, layerDepth, (this.y + row) * layerWidth + this.x, this.width);
+        }
+        layer.writePixels(this.x, this.y, this.width, this.height, this.canvas.getBuffer());
+    }
+
+    /**
+     * Renders depth slices of this partition until it is fully drawn, or the
+     * time limit is reached. Tiles showing chunks that are missing wait for the
+     * snapshots to be captured. When tile rendering is enabled,
+     * tiles are rendered front-to-back instead. Can be called from any thread.
+     *
+     * @param maxRenderTime Maximum time in milliseconds to render
+     * @param stopRequested Checked between slices, aborts rendering when true
+     */
+    public void render(long maxRenderTime, BooleanSupplier stopRequested) {
+        if (this.isFinished()) {
+            return;
+        }
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxRenderTime);
+        if (Maplands.isTileRendering()) {
+            this.renderZ = this.renderer.renderTiles(this.tiles, this.renderZ, this.maximumRenderZ, deadline);
+        } else {
+            this.renderZ = this.renderer.renderSlices(this.tiles, this.renderZ, this.maximumRenderZ, deadline, stopRequested);
+        }
+    }
+
+    /**
+     * Splits a display into partitions of at most {@link #SIZE} by {@link #SIZE} pixels.
+     * The tiles that need drawing in each partition are initialized from the tiles
+     * that need drawing in the display.
+     *
+     * @param layer Display layer
+     * @param sprites Sprites used to draw the display
+     * @param facing View facing
+     * @param startX Start block x-coordinate
+     * @param startY Start block y-coordinate
+     * @param startZ Start block z-coordinate
+     * @param snapshots Chunk snapshots blocks are read from
+     * @param tiles Tiles that need drawing in the display
+     * @param renderZ Depth level to continue rendering at
+     * @param maximumRenderZ Maximum depth level to render
+     * @return list of partitions
+     */
+    public static List<MapRenderPartition> create(MapCanvas layer, IsometricBlockSprites sprites, BlockFace facing,
+            int startX, int startY, int startZ, MaplandsDisplaySnapshots snapshots,
+            Linked2DTileSet tiles, int renderZ, int maximumRenderZ)
+    {
+        ZoomLevel zoom = sprites.getZoom();
+        int offsetX = layer.getWidth() >> 1;
+        int offsetY = layer.getHeight() >> 1;
+        List<MapRenderPartition> partitions = new ArrayList<MapRenderPartition>();
+        for (int py = 0; py < layer.getHeight(); py += SIZE) {
+            for (int px = 0; px < layer.getWidth(); px += SIZE) {
+                int pw = Math.min(SIZE, layer.getWidth() - px);
+                int ph = Math.min(SIZE, layer.getHeight() - py);
+
+                // Find the range of tiles whose sprites overlap this area
+                int minCols = Integer.MAX_VALUE, maxCols = Integer.MIN_VALUE;
+                for (int tx = tiles.getMinX(); tx <= tiles.getMaxX(); tx++) {
+                    int draw_x = zoom.getDrawX(tx) + offsetX;
+                    if (draw_x < (px + pw) && (draw_x + zoom.getWidth()) > px) {
+                        minCols = Math.min(minCols, tx);
+                        maxCols = Math.max(maxCols, tx);
+                    }
+                }
+                int minRows = Integer.MAX_VALUE, maxRows = Integer.MIN_VALUE;
+                for (int ty = tiles.getMinY(); ty <= tiles.getMaxY(); ty++) {
+                    int draw_y = zoom.getDrawY(ty) + offsetY;
+                    if (draw_y < (py + ph) && (draw_y + zoom.getHeight()) > py) {
+                        minRows = Math.min(minRows, ty);
+                        maxRows = Math.max(maxRows, ty);
+                    }
+                }
+                if (minCols > maxCols || minRows > maxRows) {
+                    continue;
+                }
+
+                MapRenderPartition partition = new MapRenderPartition(px, py, pw, ph,
+                        minCols, maxCols, minRows, maxRows,
+                        layer, sprites, facing, startX, startY, startZ, snapshots,
+                        renderZ, maximumRenderZ);
+
+                // Only draw the tiles that still need drawing in the display
+                for (int depth = 0; depth < 3; depth++) {
+                    Linked2DTile current = tiles.getValidTiles(depth).cursor();
+                    while (current.next()) {
+                        if (partition.containsTile(current.x, current.y)) {
+                            partition.tiles.set(current.x, current.y);
+                        }
+                    }
+                }
+
+                partitions.add(partition);
+            }
+        }
+        return partitions;
+    }
+
+    /**
+     * Updates the front-most opaque block records of a display with those of
+     * partitions that rendered. Must be called on the main thread while the
+     * partitions are not rendering.
+     *
+     * @param partitions Partitions of the display that rendered
+     * @param frontBlocks Front-most opaque block records of the display, updated
+     */
+    public static void updateFrontBlocks(List<MapRenderPartition> partitions, TileFrontBlocks frontBlocks) {
+        List<TileFrontBlocks> sources = new ArrayList<TileFrontBlocks>(partitions.size());
+        for (MapRenderPartition partition : partitions) {
+            sources.add(partition.frontBlocks);
+        }
+        frontBlocks.merge(sources);
+    }
+
+    /**
+     * Updates the tiles that need drawing of a display, so that only tiles that
+     * still need drawing in one of the partitions remain set.
+     *
+     * @param partitions Partitions of the display
+     * @param tiles Tiles that need drawing in the display, updated
+     */
+    public static void updateTiles(List<MapRenderPartition> partitions, Linked2DTileSet tiles) {
+        for (int depth = 0; depth < 3; depth++) {
+            Linked2DTile current = tiles.getValidTiles(depth).cursor();
+            while (current.next()) {
+                boolean needsDrawing = false;
+                for (MapRenderPartition partition : partitions) {
+                    if (partition.needsDrawing(current.x, current.y)) {
+                        needsDrawing = true;
+                        break;
+                    }
+                }
+                if (!needsDrawing) {
+                    current.remove();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,249 @@
+package com.bergerkiller.bukkit.maplands;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Hands out a single budget of render time every tick, shared by all the
+ * displays that are rendering on the main thread. This keeps the time spent
+ * rendering bounded, no matter how many displays are rendering at once.<br>
+ * <br>
+ * Displays that want to render are kept in a queue. At the start of every tick
+ * the budget is divided among the displays in the queue according to the
+ * {@link Policy}. Displays that received time are moved to the back of the queue,
+ * so that displays that did not get any time are first in line the next tick.
+ * Time that a display did not use can be claimed by other displays that same tick.
+ * Displays that stop asking for render time are removed from the queue.<br>
+ * <br>
+ * Capturing chunk snapshots for asynchronous rendering also happens on the main
+ * thread, so the number of chunks captured every tick is limited as well.
+ */
+public class MapRenderScheduler {
+    /** Minimum amount of time in milliseconds given to a display when it gets time */
+    public static final int MIN_RENDER_TIME = 2;
+    /** Maximum number of chunk snapshots all displays combined may capture during a single tick */
+    public static final int MAX_CHUNK_CAPTURES = 32;
+    private final List<MaplandsDisplay> queue = new ArrayList<MaplandsDisplay>();
+    private final Map<MaplandsDisplay, Integer> allocated = new IdentityHashMap<MaplandsDisplay, Integer>();
+    private final Set<MaplandsDisplay> requested = Collections.newSetFromMap(new IdentityHashMap<MaplandsDisplay, Boolean>());
+    private Policy policy = Policy.FAIR_SHARE;
+    private int totalRenderTime = 50;
+    private int remainingRenderTime = 0;
+    private int remainingChunkCaptures = 0;
+
+    /**
+     * Gets the policy used to divide the render time among displays
+     *
+     * @return policy
+     */
+    public Policy getPolicy() {
+        return this.policy;
+    }
+
+    /**
+     * Sets the policy used to divide the render time among displays
+     *
+     * @param policy Policy to use
+     */
+    public void setPolicy(Policy policy) {
+        this.policy = policy;
+    }
+
+    /**
+     * Gets the total amount of time in milliseconds all displays combined
+     * may spend rendering during a single tick
+     *
+     * @return total render time per tick
+     */
+    public int getTotalRenderTime() {
+        return this.totalRenderTime;
+    }
+
+    /**
+     * Sets the total amount of time in milliseconds all displays combined
+     * may spend rendering during a single tick
+     *
+     * @param time Total render time per tick
+     */
+    public void setTotalRenderTime(int time) {
+        this.totalRenderTime = time;
+    }
+
+    /**
+     * Gets the number of displays waiting for render time
+     *
+     * @return waiting display count
+     */
+    public int getWaitingCount() {
+        return this.queue.size();
+    }
+
+    /**
+     * Gets the amount of time in milliseconds a display may spend rendering this tick.
+     * If the display was not waiting for render time yet, it is added to the queue.
+     * After rendering, {@link #finish(int, long)} should be called with the time that
+     * was actually used.
+     *
+     * @param display Display that wants to render
+     * @return render time in milliseconds, 0 if the display must wait
+     */
+    public int getRenderTime(MaplandsDisplay display) {
+        if (this.requested.add(display) && !this.queue.contains(display)) {
+            this.queue.add(display);
+        }
+
+        Integer time = this.allocated.remove(display);
+        if (time != null) {
+            return time.intValue();
+        }
+
+        // Claim time not used by other displays
+        int claimed = Math.min(Maplands.getMaxRenderTime(), this.remainingRenderTime);
+        if (claimed < MIN_RENDER_TIME) {
+            return 0;
+        }
+        this.remainingRenderTime -= claimed;
+        return claimed;
+    }
+
+    /**
+     * Returns the render time a display did not use, so that other
+     * displays can use it this tick. When the display used more time than
+     * it was given, the time it ran over is taken from the time left this tick,
+     * and then from the displays that did not render yet, last served first.
+     *
+     * @param renderTime Render time returned by {@link #getRenderTime(MaplandsDisplay)}
+     * @param usedTime Time in milliseconds actually spent rendering
+     */
+    public void finish(int renderTime, long usedTime) {
+        if (usedTime < renderTime) {
+            this.remainingRenderTime += (int) (renderTime - usedTime);
+            return;
+        }
+
+        int overrun = (int) Math.min(usedTime - renderTime, this.totalRenderTime);
+        int fromRemaining = Math.min(overrun, this.remainingRenderTime);
+        this.remainingRenderTime -= fromRemaining;
+        overrun -= fromRemaining;
+        for (int i = this.queue.size() - 1; i >= 0 && overrun > 0; i--) {
+            MaplandsDisplay display = this.queue.get(i);
+            Integer time = this.allocated.get(display);
+            if (time == null) {
+                continue;
+            }
+            int taken = Math.min(overrun, time.intValue());
+            overrun -= taken;
+            if ((time.intValue() - taken) < MIN_RENDER_TIME) {
+                this.allocated.remove(display);
+            } else {
+                this.allocated.put(display, time.intValue() - taken);
+            }
+        }
+    }
+
+    /**
+     * Claims the capture of a single chunk snapshot this tick. When all displays
+     * combined captured too many chunks this tick, the chunk must be captured
+     * during a later tick instead.
+     *
+     * @return True if the chunk may be captured, False if it must wait
+     */
+    public boolean claimChunkCapture() {
+        if (this.remainingChunkCaptures <= 0) {
+            return false;
+        }
+        this.remainingChunkCaptures--;
+        return true;
+    }
+
+    /**
+     * Removes a display from the queue, because it finished rendering
+     * or is no longer displayed
+     *
+     * @param display Display to remove
+     */
+    public void remove(MaplandsDisplay display) {
+        if (this.queue.remove(display)) {
+            this.allocated.remove(display);
+            this.requested.remove(display);
+        }
+    }
+
+    /**
+     * Removes all displays from the queue
+     */
+    public void clear() {
+        this.queue.clear();
+        this.allocated.clear();
+        this.requested.clear();
+        this.remainingRenderTime = 0;
+        this.remainingChunkCaptures = 0;
+    }
+
+    /**
+     * Divides the render time budget of a new tick among the waiting displays.
+     * Must be called once every tick.
+     */
+    public void nextTick() {
+        this.allocated.clear();
+        this.remainingRenderTime = this.totalRenderTime;
+        this.remainingChunkCaptures = MAX_CHUNK_CAPTURES;
+
+        // Displays that did not ask for time since the previous tick no longer wait for it
+        this.queue.retainAll(this.requested);
+        this.requested.clear();
+        if (this.queue.isEmpty()) {
+            return;
+        }
+
+        // Order in which displays receive time
+        List<MaplandsDisplay> order = new ArrayList<MaplandsDisplay>(this.queue);
+        if (this.policy == Policy.PRIORITY) {
+            // Stable sort, displays of the same priority stay in queue order
+            Collections.sort(order, Comparator.comparingInt(MaplandsDisplay::getRenderPriority).reversed());
+        }
+
+        // With fair share, the time is divided weighted by the priority of the displays
+        int totalPriority = 0;
+        for (MaplandsDisplay display : order) {
+            totalPriority += Math.max(1, display.getRenderPriority());
+        }
+
+        List<MaplandsDisplay> served = new ArrayList<MaplandsDisplay>();
+        for (MaplandsDisplay display : order) {
+            int share;
+            if (this.policy == Policy.PRIORITY) {
+                share = Maplands.getMaxRenderTime();
+            } else {
+                share = this.totalRenderTime * Math.max(1, display.getRenderPriority()) / totalPriority;
+                share = Math.max(MIN_RENDER_TIME, Math.min(Maplands.getMaxRenderTime(), share));
+            }
+            int time = Math.min(share, this.remainingRenderTime);
+            if (time < MIN_RENDER_TIME) {
+                break;
+            }
+            this.allocated.put(display, time);
+            this.remainingRenderTime -= time;
+            served.add(display);
+        }
+
+        // Displays that got time go to the back of the queue
+        this.queue.removeAll(served);
+        this.queue.addAll(served);
+    }
+
+    /**
+     * Policy used to divide the render time among displays
+     */
+    public static enum Policy {
+        /** Every waiting display gets a share weighted by its render priority, taking turns when there are too many */
+        FAIR_SHARE,
+        /** Displays with the highest render priority get as much time as they can use first */
+        PRIORITY
+    }
+}
@@ -0,0 +1,695 @@
+package com.bergerkiller.bukkit.maplands;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.function.BooleanSupplier;
+
+import org.bukkit.block.BlockFace;
+
+import com.bergerkiller.bukkit.common.bases.IntVector2;
+import com.bergerkiller.bukkit.common.bases.IntVector3;
+import com.bergerkiller.bukkit.common.map.MapCanvas;
+import com.bergerkiller.bukkit.common.map.MapTexture;
+import com.bergerkiller.bukkit.common.utils.MathUtil;
+import com.bergerkiller.bukkit.common.wrappers.BlockData;
+import com.bergerkiller.bukkit.common.wrappers.BlockRenderOptions;
+import com.bergerkiller.bukkit.maplands.MaplandsDisplay.DrawResult;
+import com.bergerkiller.bukkit.maplands.util.Linked2DTile;
+import com.bergerkiller.bukkit.maplands.util.Linked2DTileSet;
+import com.bergerkiller.bukkit.maplands.util.TileFrontBlocks;
+
+/**
+ * Draws the block tiles of a maplands view onto a canvas. Stores the view
+ * parameters (facing, zoom, start block) that stay the same while rendering,
+ * so that the same drawing logic can run on the main thread against the
+ * live world, or on a worker thread against chunk snapshots. The blocks are
+ * read through a {@link BlockSource}.<br>
+ * <br>
+ * While rendering, areas known to only contain air (above the terrain, or
+ * empty chunk sections) are skipped without looking up any sprites. For every
+ * tile the depth before which it only shows air is remembered, so that depth
+ * levels where all tiles only show air are skipped entirely.<br>
+ * <br>
+ * For tiles drawn with sprites that are not fully opaque, a bitmask of the
+ * pixels of the tile that are not yet covered is kept. Every sprite drawn
+ * clears the pixels it covers, using the coverage bitmask of the sprite,
+ * and once no pixels remain the tile is done.<br>
+ * <br>
+ * Tiles showing a block of a chunk that is not available yet wait for that chunk,
+ * while the other tiles continue rendering deeper depth levels. Once the chunk is
+ * available, the waiting tiles continue rendering where they stopped.<br>
+ * <br>
+ * Rendering a depth level can be interrupted part-way when the time limit is
+ * reached. The next time rendering continues at the tile it stopped at.
+ */
+public class MapSliceRenderer {
+    protected final MapCanvas canvas;
+    protected final IsometricBlockSprites sprites;
+    protected final BlockFace facing;
+    protected final int startX, startY, startZ;
+    private final BlockSource blocks;
+    private final int drawOffsetX, drawOffsetY;
+    private final IntVector3 depthStepDelta;
+    /** Number of tiles rendered between checks of the time limit */
+    private static final int TIME_CHECK_INTERVAL = 32;
+    private int[] tileStartDepths = null;
+    private long[][] tileRemaining = null;
+    private int[] tileRemainingDepths = null;
+    private int tileStateMinX, tileStateMinY, tileStateWidth, tileStateHeight;
+    private TileFrontBlocks frontBlocks = null;
+    private final Map<IntVector2, BitSet> waitingChunks = new HashMap<IntVector2, BitSet>();
+    private final BitSet waitingTiles = new BitSet();
+    private int sliceResumeDepth = Integer.MIN_VALUE;
+    private int sliceResumeIndex = -1;
+    private int sliceResumeNextDepth;
+    private boolean sliceResumeFullyDrawn;
+
+    /**
+     * Creates a new renderer
+     *
+     * @param canvas Canvas to draw on
+     * @param drawOffsetX Pixel x-coordinate on the canvas of the middle of the display
+     * @param drawOffsetY Pixel y-coordinate on the canvas of the middle of the display
+     * @param sprites Sprites to draw blocks with
+     * @param facing View facing
+     * @param startX Start block x-coordinate
+     * @param startY Start block y-coordinate
+     * @param startZ Start block z-coordinate
+     * @param blocks Source of the blocks to draw
+     */
+    public MapSliceRenderer(MapCanvas canvas, int drawOffsetX, int drawOffsetY,
+            IsometricBlockSprites sprites, BlockFace facing, int startX, int startY, int startZ,
+            BlockSource blocks)
+    {
+        this.canvas = canvas;
+        this.sprites = sprites;
+        this.facing = facing;
+        this.startX = startX;
+        this.startY = startY;
+        this.startZ = startZ;
+        this.drawOffsetX = drawOffsetX;
+        this.drawOffsetY = drawOffsetY;
+        this.blocks = blocks;
+        this.depthStepDelta = MapUtil.getDepthStepDelta(facing);
+    }
+
+    /**
+     * Sets the records of the front-most opaque block of every tile to update
+     * while drawing. When drawing single blocks using {@link #drawBlockTile(int, int, int, boolean)},
+     * blocks that are already drawn as the front-most opaque block of the tile are not drawn again.
+     *
+     * @param frontBlocks Front block records, null to not keep them
+     */
+    public void setFrontBlocks(TileFrontBlocks frontBlocks) {
+        this.frontBlocks = frontBlocks;
+    }
+
+    /**
+     * Gets the canvas this renderer draws on
+     *
+     * @return canvas
+     */
+    public MapCanvas getCanvas() {
+        return this.canvas;
+    }
+
+    /**
+     * Gets the source of the blocks this renderer draws
+     *
+     * @return block source
+     */
+    public BlockSource getBlockSource() {
+        return this.blocks;
+    }
+
+    /**
+     * Gets the sprite of the block at the given world coordinates.
+     * If the block is not available right now, because the chunk
+     * isn't loaded yet, null is returned.
+     */
+    private IsometricBlockSprites.Sprite getSprite(int x, int y, int z) {
+        BlockData blockData = this.blocks.getBlockData(x, y, z);
+        if (blockData == null) {
+            return null;
+        }
+
+        // Without neighbouring blocks the render options are always the default ones
+        if (!this.blocks.hasNeighbourRenderOptions()) {
+            return this.sprites.getDefaultSprite(blockData);
+        }
+
+        // Only blocks that connect to their neighbours need the full render options
+        IsometricBlockSprites.Sprite sprite = this.sprites.getStateSprite(blockData);
+        if (sprite == null) {
+            BlockRenderOptions options = this.blocks.getRenderOptions(x, y, z, blockData);
+            sprite = this.sprites.getSprite(options);
+            this.sprites.verifyStateSprite(blockData, options);
+        }
+        return sprite;
+    }
+
+    /**
+     * Gets the number of depth steps of 3 depth levels, starting at the given world
+     * coordinates, that are known to only contain air. Every step moves the block
+     * coordinates by {@link MapUtil#getDepthStepDelta(BlockFace)}, so only the steps
+     * that stay inside the same chunk are counted.
+     */
+    private int getEmptySteps(int x, int y, int z) {
+        int layers = this.blocks.getEmptyLayers(x, y, z);
+        return (layers > 0) ? Math.min(layers, this.getStepsInChunk(x, z)) : 0;
+    }
+
+    /**
+     * Gets the number of depth steps that can be skipped without drawing anything.
+     * Does not skip past the minimum render y-coordinate, so that tiles reaching
+     * it are still finished.
+     */
+    private int getSkippedSteps(int x, int y, int z) {
+        if (y < Maplands.getMinRenderY()) {
+            return 0;
+        }
+        int steps = this.getEmptySteps(x, y, z);
+        return (steps > 0) ? Math.min(steps, y - Maplands.getMinRenderY() + 1) : 0;
+    }
+
+    /**
+     * Gets the number of depth steps, starting at the given world coordinates,
+     * that stay inside the same chunk
+     *
+     * @param x World block x-coordinate
+     * @param z World block z-coordinate
+     * @return number of steps inside the chunk, at least 1
+     */
+    private int getStepsInChunk(int x, int z) {
+        int sx = (this.depthStepDelta.x > 0) ? (16 - (x & 0xF)) : ((x & 0xF) + 1);
+        int sz = (this.depthStepDelta.z > 0) ? (16 - (z & 0xF)) : ((z & 0xF) + 1);
+        return Math.min(sx, sz);
+    }
+
+    /**
+     * Renders a single depth level onto the canvas
+     *
+     * @param tiles The tiles that still need drawing. Tiles that are fully drawn are removed.
+     * @param depth The depth to render (same as z-coordinate of the tile)
+     * @return result of drawing the slice
+     */
+    public DrawResult renderSlice(Linked2DTileSet tiles, int depth) {
+        return renderSlice(tiles, depth, new int[3], Long.MAX_VALUE);
+    }
+
+    /**
+     * Renders depth levels onto the canvas, front to back, until all tiles are fully drawn
+     * or the time limit is reached. Depth levels where all tiles only show air are skipped.
+     * Tiles showing a block that is not available right now wait for its chunk, and
+     * the returned depth is that of the tile waiting the longest.<br>
+     * <br>
+     * The time limit is checked every {@link #TIME_CHECK_INTERVAL} tiles. When reached
+     * part-way a depth level, the next call continues at the tile where it stopped.
+     *
+     * @param tiles The tiles that still need drawing. Tiles that are fully drawn are removed.
+     * @param startDepth The depth to start rendering at
+     * @param maximumDepth The maximum depth to render (inclusive)
+     * @param deadline {@link System#nanoTime()} at which to stop rendering
+     * @param stopRequested Checked between depth levels, stops rendering when true
+     * @return depth to continue rendering at, maximumDepth + 1 if all tiles are drawn
+     */
+    public int renderSlices(Linked2DTileSet tiles, int startDepth, int maximumDepth, long deadline, BooleanSupplier stopRequested) {
+        int[] nextDepths = new int[] { Integer.MIN_VALUE, Integer.MIN_VALUE, Integer.MIN_VALUE };
+        prepareTileState(tiles);
+        int depth = Math.min(startDepth, this.resumeWaitingTiles());
+        while (depth <= maximumDepth) {
+            DrawResult sliceResult = renderSlice(tiles, depth, nextDepths, deadline);
+            if (this.sliceResumeIndex != -1) {
+                return depth; // Ran out of time, continue this slice later
+            } else if (sliceResult == DrawResult.FULLY_DRAWN) {
+                return maximumDepth + 1;
+            }
+
+            // Find the next depth at which tiles of one of the three depth lists need drawing
+            // Lists that have not been rendered yet this call must be rendered at the next depth
+            int nextDepth = Integer.MAX_VALUE;
+            for (int n = 1; n <= 3; n++) {
+                nextDepth = Math.min(nextDepth, Math.max(depth + n, nextDepths[Math.floorMod(depth + n, 3)]));
+            }
+            depth = nextDepth;
+            if (stopRequested.getAsBoolean() || System.nanoTime() >= deadline) {
+                break;
+            }
+        }
+        return (depth > maximumDepth) ? this.getWaitingDepth(maximumDepth + 1) : depth;
+    }
+
+    private DrawResult renderSlice(Linked2DTileSet tiles, int depth, int[] nextDepths, long deadline) {
+        this.canvas.setDrawDepth(depth);
+        boolean mapIsFullyDrawn = true;
+        prepareTileState(tiles);
+        int[] startDepths = this.tileStartDepths;
+        int nextDepth = Integer.MAX_VALUE;
+
+        {
+            Linked2DTile current = tiles.getValidTiles(depth).cursor();
+
+            // Continue where rendering of this slice stopped before
+            if (this.sliceResumeIndex != -1) {
+                if (this.sliceResumeDepth == depth) {
+                    current.skipTo(this.sliceResumeIndex - 1); // Tile at the index was not drawn yet
+                    nextDepth = this.sliceResumeNextDepth;
+                    mapIsFullyDrawn = this.sliceResumeFullyDrawn;
+                }
+                this.sliceResumeIndex = -1;
+            }
+
+            int counter = 0;
+            while (current.next()) {
+                // Check time every now and then, and continue at this tile later
+                int index = current.getIndex();
+                if (++counter == TIME_CHECK_INTERVAL) {
+                    counter = 0;
+                    if (System.nanoTime() >= deadline) {
+                        this.sliceResumeDepth = depth;
+                        this.sliceResumeIndex = index;
+                        this.sliceResumeNextDepth = nextDepth;
+                        this.sliceResumeFullyDrawn = mapIsFullyDrawn;
+                        return DrawResult.PARTIALLY_DRAWN;
+                    }
+                }
+
+                // Skip tiles waiting for a chunk
+                if (this.waitingTiles.get(index)) {
+                    mapIsFullyDrawn = false;
+                    continue;
+                }
+
+                // Skip tiles that only show air, or were already drawn, at this depth
+                if (startDepths[index] > depth) {
+                    mapIsFullyDrawn = false;
+                    nextDepth = Math.min(nextDepth, startDepths[index]);
+                    continue;
+                }
+
+                current.moveToBlock(this.facing, depth, this.startX, this.startY, this.startZ);
+                int emptySteps = this.getSkippedSteps(current.blockX, current.blockY, current.blockZ);
+                if (emptySteps > 0) {
+                    startDepths[index] = depth + 3 * emptySteps;
+                    mapIsFullyDrawn = false;
+                    nextDepth = Math.min(nextDepth, startDepths[index]);
+                    continue;
+                }
+
+                switch (drawWorldBlockAtTile(current.blockX, current.blockY, current.blockZ, current.x, current.y, true, index, depth)) {
+                case NOT_DRAWN:
+                    // Wait for the chunk, other tiles continue rendering meanwhile
+                    startDepths[index] = depth;
+                    this.waitForChunk(index, current.blockX, current.blockZ);
+                    mapIsFullyDrawn = false;
+                    break;
+                case PARTIALLY_DRAWN:
+                    startDepths[index] = depth + 3;
+                    mapIsFullyDrawn = false;
+                    nextDepth = Math.min(nextDepth, depth + 3);
+                    break;
+                case FULLY_DRAWN:
+                    // Fully covered. No longer render this tile!
+                    current.remove();
+                    break;
+                }
+            }
+        }
+        nextDepths[Math.floorMod(depth, 3)] = nextDepth;
+
+        if (mapIsFullyDrawn) {
+            return DrawResult.FULLY_DRAWN;
+        } else {
+            return DrawResult.PARTIALLY_DRAWN;
+        }
+    }
+
+    /**
+     * Prepares the arrays storing, for every tile, the depth before which the
+     * tile only shows air or was already drawn, and the pixels of the tile not yet
+     * covered. They are indexed by the tile index in the set, and are reset when
+     * the bounds of the tile set change.
+     *
+     * @param tiles Tile set
+     */
+    private void prepareTileState(Linked2DTileSet tiles) {
+        int width = tiles.getMaxX() - tiles.getMinX() + 1;
+        int height = tiles.getMaxY() - tiles.getMinY() + 1;
+        if (this.tileStartDepths == null ||
+            this.tileStateMinX != tiles.getMinX() ||
+            this.tileStateMinY != tiles.getMinY() ||
+            this.tileStateWidth != width ||
+            this.tileStateHeight != height)
+        {
+            this.tileStartDepths = new int[width * height];
+            this.tileRemaining = new long[width * height][];
+            this.tileRemainingDepths = new int[width * height];
+            this.tileStateMinX = tiles.getMinX();
+            this.tileStateMinY = tiles.getMinY();
+            this.tileStateWidth = width;
+            this.tileStateHeight = height;
+            Arrays.fill(this.tileStartDepths, Integer.MIN_VALUE);
+            this.waitingChunks.clear();
+            this.waitingTiles.clear();
+        }
+    }
+
+    /**
+     * Notifies the renderer that a block changed in the world, so that
+     * information remembered about the blocks is kept up to date
+     *
+     * @param x World block x-coordinate
+     * @param y World block y-coordinate
+     * @param z World block z-coordinate
+     */
+    public void invalidateBlock(int x, int y, int z) {
+        this.blocks.invalidateBlock(x, y, z);
+    }
+
+    /**
+     * Schedules a tile to be drawn again starting at a depth level. Must be called
+     * when a tile is set again in the tile set, so that blocks the tile already
+     * drawn or skipped before are drawn again.
+     *
+     * @param tx Tile x-coordinate
+     * @param ty Tile y-coordinate
+     * @param tz Tile depth to start drawing at
+     */
+    public void invalidateTile(int tx, int ty, int tz) {
+        int dx = tx - this.tileStateMinX;
+        int dy = ty - this.tileStateMinY;
+        int depthModThree = MapUtil.getTileDepthModThree(tx, ty);
+        if (this.tileStartDepths != null && depthModThree != -1 &&
+            dx >= 0 && dy >= 0 && dx < this.tileStateWidth && dy < this.tileStateHeight)
+        {
+            // Round down to a depth level the tile is drawn at
+            int depth = tz - Math.floorMod(tz - depthModThree, 3);
+            int index = dy * this.tileStateWidth + dx;
+            if (this.tileStartDepths[index] > depth) {
+                this.tileStartDepths[index] = depth;
+            }
+
+            // Tiles before the resume position would be missed, so render the slice from the start
+            if (this.sliceResumeIndex != -1 && depth <= this.sliceResumeDepth) {
+                this.sliceResumeIndex = -1;
+            }
+        }
+    }
+
+    /**
+     * Makes a tile wait for the chunk containing a block to become available.
+     * The tile is not drawn until then.
+     */
+    private void waitForChunk(int tileIndex, int x, int z) {
+        IntVector2 chunk = new IntVector2(MathUtil.toChunk(x), MathUtil.toChunk(z));
+        this.waitingChunks.computeIfAbsent(chunk, c -> new BitSet()).set(tileIndex);
+        this.waitingTiles.set(tileIndex);
+    }
+
+    /**
+     * Lets tiles waiting for chunks that are now available continue rendering
+     *
+     * @return lowest depth at which a tile continues rendering, Integer.MAX_VALUE if none do
+     */
+    private int resumeWaitingTiles() {
+        int resumeDepth = Integer.MAX_VALUE;
+        Iterator<Map.Entry<IntVector2, BitSet>> iter = this.waitingChunks.entrySet().iterator();
+        while (iter.hasNext()) {
+            Map.Entry<IntVector2, BitSet> entry = iter.next();
+            if (this.blocks.isChunkAvailable(entry.getKey().x, entry.getKey().z)) {
+                BitSet chunkTiles = entry.getValue();
+                for (int index = chunkTiles.nextSetBit(0); index >= 0; index = chunkTiles.nextSetBit(index + 1)) {
+                    this.waitingTiles.clear(index);
+                    resumeDepth = Math.min(resumeDepth, this.tileStartDepths[index]);
+                }
+                iter.remove();
+            }
+        }
+        return resumeDepth;
+    }
+
+    /**
+     * Gets the lowest depth at which a tile waits for a chunk
+     *
+     * @param def Value returned when no tiles are waiting
+     * @return lowest depth of a waiting tile, or def if none are waiting
+     */
+    private int getWaitingDepth(int def) {
+        int depth = Integer.MAX_VALUE;
+        for (int index = this.waitingTiles.nextSetBit(0); index >= 0; index = this.waitingTiles.nextSetBit(index + 1)) {
+            depth = Math.min(depth, this.tileStartDepths[index]);
+        }
+        return (depth == Integer.MAX_VALUE) ? def : depth;
+    }
+
+    /**
+     * Updates the bitmask of pixels of a tile that are not yet covered, after a sprite
+     * that is not fully opaque was drawn. The first time, or when the tile is drawn again
+     * at a depth it was already drawn at before (it was invalidated), the bitmask is
+     * read from the depth buffer of the canvas. After that the pixels the sprite covers
+     * are cleared from the bitmask.
+     *
+     * @param tileIndex Index of the tile in the tile set
+     * @param depth Depth the sprite was drawn at
+     * @param sprite Sprite that was drawn
+     * @param draw_x Pixel x-coordinate the sprite was drawn at
+     * @param draw_y Pixel y-coordinate the sprite was drawn at
+     * @return True if pixels remain that are not covered
+     */
+    private boolean updateRemainingPixels(int tileIndex, int depth, IsometricBlockSprites.Sprite sprite, int draw_x, int draw_y) {
+        long[] remaining = this.tileRemaining[tileIndex];
+        if (remaining == null || this.tileRemainingDepths[tileIndex] >= depth) {
+            remaining = this.readRemainingPixels(depth, draw_x, draw_y);
+        } else {
+            long[] coverage = sprite.coverage;
+            for (int i = 0; i < remaining.length; i++) {
+                remaining[i] &= ~coverage[i];
+            }
+        }
+
+        for (long word : remaining) {
+            if (word != 0) {
+                this.tileRemaining[tileIndex] = remaining;
+                this.tileRemainingDepths[tileIndex] = depth;
+                return true;
+            }
+        }
+
+        // All covered, the mask is no longer needed
+        this.tileRemaining[tileIndex] = null;
+        return false;
+    }
+
+    /**
+     * Reads the pixels of the sprite brush drawn at a position that still need drawing
+     * from the depth buffer of the canvas. Pixels outside of the canvas are never drawn,
+     * and don't need drawing.
+     */
+    private long[] readRemainingPixels(int depth, int draw_x, int draw_y) {
+        int width = this.sprites.width;
+        int height = this.sprites.height;
+        int canvasWidth = this.canvas.getWidth();
+        int canvasHeight = this.canvas.getHeight();
+        byte[] brush = this.sprites.getBrushTexture().getBuffer();
+        short[] depthBuffer = this.canvas.getDepthBuffer();
+        long[] remaining = new long[(width * height + 63) >> 6];
+        for (int y = 0; y < height; y++) {
+            int canvasY = draw_y + y;
+            if (canvasY < 0 || canvasY >= canvasHeight) {
+                continue;
+            }
+            for (int x = 0; x < width; x++) {
+                int canvasX = draw_x + x;
+                int i = y * width + x;
+                if (canvasX >= 0 && canvasX < canvasWidth && brush[i] != 0 &&
+                    (depthBuffer == null || depthBuffer[canvasY * canvasWidth + canvasX] > depth))
+                {
+                    remaining[i >> 6] |= (1L << i);
+                }
+            }
+        }
+        return remaining;
+    }
+
+    /**
+     * Renders tiles one at a time, walking the blocks shown by each tile front-to-back
+     * until a block fully covers the tile. This is an alternative to rendering
+     * every depth level using {@link #renderSlice(Linked2DTileSet, int)}, and produces
+     * the same result, because the depth buffer decides what is visible.<br>
+     * <br>
+     * Tiles that are done are removed from the set. Tiles showing a block that is not
+     * available right now are kept, and wait for its chunk. They continue walking where
+     * they stopped once it is available, and the returned depth is that of the tile
+     * waiting the longest.
+     *
+     * @param tiles The tiles that still need drawing. Tiles that are done are removed.
+     * @param startDepth The depth to start rendering tiles at
+     * @param maximumDepth The maximum depth to render (inclusive)
+     * @param deadline {@link System#nanoTime()} at which to stop rendering more tiles
+     * @return depth to continue rendering at, maximumDepth + 1 if all tiles are done
+     */
+    public int renderTiles(Linked2DTileSet tiles, int startDepth, int maximumDepth, long deadline) {
+        prepareTileState(tiles);
+        startDepth = Math.min(startDepth, this.resumeWaitingTiles());
+        int[] startDepths = this.tileStartDepths;
+        int counter = 0;
+        for (int depthModThree = 0; depthModThree < 3; depthModThree++) {
+            // First depth level >= startDepth at which tiles of this list are drawn
+            int firstDepth = startDepth + Math.floorMod(depthModThree - startDepth, 3);
+
+            Linked2DTile current = tiles.getValidTiles(depthModThree).cursor();
+            while (current.next()) {
+                // Check time every now and then, and continue later at the same depth
+                if (++counter == TIME_CHECK_INTERVAL) {
+                    counter = 0;
+                    if (System.nanoTime() >= deadline) {
+                        return startDepth;
+                    }
+                }
+
+                // Skip tiles waiting for a chunk
+                int index = current.getIndex();
+                if (this.waitingTiles.get(index)) {
+                    continue;
+                }
+
+                // Continue where the tile stopped before
+                int tileDepth = Math.max(firstDepth, startDepths[index]);
+                current.moveToBlock(this.facing, tileDepth, this.startX, this.startY, this.startZ);
+                boolean done = true;
+                for (int depth = tileDepth; depth <= maximumDepth; depth += 3) {
+                    // Skip past blocks that are known to be air
+                    int emptySteps = this.getSkippedSteps(current.blockX, current.blockY, current.blockZ);
+                    if (emptySteps > 0) {
+                        depth += 3 * (emptySteps - 1);
+                        current.stepBlock(this.depthStepDelta, emptySteps);
+                        continue;
+                    }
+
+                    this.canvas.setDrawDepth(depth);
+                    DrawResult result = drawWorldBlockAtTile(current.blockX, current.blockY, current.blockZ,
+                            current.x, current.y, true, index, depth);
+                    if (result == DrawResult.FULLY_DRAWN) {
+                        break;
+                    } else if (result == DrawResult.NOT_DRAWN) {
+                        // Wait for the chunk, other tiles continue meanwhile
+                        startDepths[index] = depth;
+                        this.waitForChunk(index, current.blockX, current.blockZ);
+                        done = false;
+                        break;
+                    }
+                    current.stepBlock(this.depthStepDelta, 1);
+                }
+                if (done) {
+                    current.remove();
+                }
+            }
+        }
+        return this.getWaitingDepth(maximumDepth + 1);
+    }
+
+    /**
+     * Draws a block at particular tile coordinates. The draw depth must have been set to
+     * the tile coordinate z (depth) before drawing.
+     *
+     * @param tx Tile x-coordinate (horizontal)
+     * @param ty Tile y-coordinate (vertical)
+     * @param tz Tile depth
+     * @param isRedraw Whether to redraw the block entirely, instead of on top the current contents
+     * @return result of the drawing operation
+     */
+    public DrawResult drawBlockTile(int tx, int ty, int tz, boolean isRedraw) {
+        IntVector3 b = MapUtil.screenTileToBlock(this.facing, tx, ty, tz);
+        if (b != null) {
+            return drawWorldBlockAtTile(this.startX + b.x, this.startY + b.y, this.startZ + b.z,
+                                        tx, ty, isRedraw, -1, tz);
+        } else {
+            return DrawResult.PARTIALLY_DRAWN;
+        }
+    }
+
+    /**
+     * Draws a block at particular tile coordinates. The draw depth must have been set to
+     * the tile coordinate z (depth) before drawing.
+     *
+     * @param relativeBlockCoords Coordinates relative to start block to draw
+     * @param tx Tile x-coordinate (horizontal)
+     * @param ty Tile y-coordinate (vertical)
+     * @param isRedraw Whether to redraw the block entirely, instead of on top the current contents
+     * @return result of the drawing operation
+     */
+    public DrawResult drawBlockAtTile(IntVector3 relativeBlockCoords, int tx, int ty, boolean isRedraw) {
+        return drawWorldBlockAtTile(this.startX + relativeBlockCoords.x,
+                                    this.startY + relativeBlockCoords.y,
+                                    this.startZ + relativeBlockCoords.z,
+                                    tx, ty, isRedraw, -1, Integer.MIN_VALUE);
+    }
+
+    /**
+     * Draws a block at particular tile coordinates. The draw depth must have been set to
+     * the tile coordinate z (depth) before drawing.
+     *
+     * @param x World block x-coordinate shown by the tile
+     * @param y World block y-coordinate shown by the tile
+     * @param z World block z-coordinate shown by the tile
+     * @param tx Tile x-coordinate (horizontal)
+     * @param ty Tile y-coordinate (vertical)
+     * @param isRedraw Whether to redraw the block entirely, instead of on top the current contents
+     * @param tileIndex Index of the tile in the tile set being rendered, -1 to check the depth buffer instead
+     * @param depth Depth the block is drawn at, Integer.MIN_VALUE if not known
+     * @return result of the drawing operation
+     */
+    private DrawResult drawWorldBlockAtTile(int x, int y, int z, int tx, int ty, boolean isRedraw, int tileIndex, int depth) {
+        if (y < Maplands.getMinRenderY()) {
+            return DrawResult.FULLY_DRAWN;
+        } else if (y >= Maplands.getMaxRenderY()) {
+            return DrawResult.PARTIALLY_DRAWN;
+        } else {
+            IsometricBlockSprites.Sprite sprite = this.getSprite(x, y, z);
+            if (sprite == null) {
+                return DrawResult.NOT_DRAWN;
+            }
+
+            // Keep track of the front-most opaque block of the tile
+            if (this.frontBlocks != null && depth != Integer.MIN_VALUE) {
+                if (sprite.isFullyOpaque) {
+                    if (tileIndex == -1 && this.frontBlocks.isFront(tx, ty, depth, sprite.id)) {
+                        // Drawing a single block, and it is already shown. Don't draw it again.
+                        return DrawResult.FULLY_DRAWN;
+                    }
+                    this.frontBlocks.setOpaque(tx, ty, depth, sprite.id);
+                } else {
+                    this.frontBlocks.setTransparent(tx, ty, depth);
+                }
+            }
+
+            if (sprite != this.sprites.AIR || !isRedraw) {
+                int draw_x = sprites.getZoom().getDrawX(tx) + this.drawOffsetX;
+                int draw_y = sprites.getZoom().getDrawY(ty) + this.drawOffsetY;
+
+                MapTexture texture = sprite.texture;
+                this.canvas.draw(texture, draw_x, draw_y);
+                if (sprite.isFullyOpaque) {
+                    // Fully opaque sprite, no need to check
+                    if (tileIndex != -1) {
+                        this.tileRemaining[tileIndex] = null;
+                    }
+                    return DrawResult.FULLY_DRAWN;
+                } else if (tileIndex != -1) {
+                    // Check the pixels of the tile that are not yet covered
+                    return this.updateRemainingPixels(tileIndex, depth, sprite, draw_x, draw_y) ?
+                            DrawResult.PARTIALLY_DRAWN : DrawResult.FULLY_DRAWN;
+                } else {
+                    // Ask canvas whether any more pixels remain to be drawn
+                    return this.canvas.hasMoreDepth(draw_x, draw_y, texture.getWidth(), texture.getHeight()) ?
+                            DrawResult.PARTIALLY_DRAWN : DrawResult.FULLY_DRAWN;
+                }
+            } else {
+                return DrawResult.PARTIALLY_DRAWN;
+            }
+        }
+    }
+}
@@ -101,6 +101,39 @@ public class MapUtil {
         }
     }
 
+    /**
+     * Gets the change in block coordinates when moving the same tile 3 depth
+     * levels further away from the viewer. Tiles repeat every 3 depth levels,
+     * so this is the smallest step that stays on the same tile.
+     *
+     * @param facing View direction
+     * @return block coordinate delta per 3 depth levels
+     */
+    public static IntVector3 getDepthStepDelta(BlockFace facing) {
+        if (facing == BlockFace.NORTH_EAST) {
+            return new IntVector3(1, -1, -1);
+        } else if (facing == BlockFace.SOUTH_WEST) {
+            return new IntVector3(-1, -1, 1);
+        } else if (facing == BlockFace.NORTH_WEST) {
+            return new IntVector3(-1, -1, -1);
+        } else if (facing == BlockFace.SOUTH_EAST) {
+            return new IntVector3(1, -1, 1);
+        } else {
+            return null;
+        }
+    }
+
+    /**
+     * Packs chunk coordinates into a single long value, used as a key to look up chunks
+     *
+     * @param cx Chunk x-coordinate
+     * @param cz Chunk z-coordinate
+     * @return chunk key
+     */
+    public static long getChunkKey(int cx, int cz) {
+        return ((long) cx << 32) | (cz & 0xFFFFFFFFL);
+    }
+
     /**
      * Performs a mathematical operation to turn block coordinates into tile coordinates
      * 
@@ -2,6 +2,9 @@ package com.bergerkiller.bukkit.maplands;
 
 import java.util.Locale;
 import java.util.UUID;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 
 import org.bukkit.Bukkit;
@@ -12,6 +15,7 @@ import org.bukkit.inventory.ItemStack;
 
 import com.bergerkiller.bukkit.common.Common;
 import com.bergerkiller.bukkit.common.PluginBase;
+import com.bergerkiller.bukkit.common.Task;
 import com.bergerkiller.bukkit.common.config.FileConfiguration;
 import com.bergerkiller.bukkit.common.map.MapColorPalette;
 import com.bergerkiller.bukkit.common.map.MapDisplay;
@@ -24,7 +28,15 @@ public class Maplands extends PluginBase {
     private static byte backgroundColor = MapColorPalette.COLOR_TRANSPARENT;
     private static int minRenderY = 0;
     private static int maxRenderY = 256;
+    private static boolean asyncRendering = false;
+    private static boolean tileRendering = false;
+    private static boolean readRegionFiles = false;
     private MapCanvasCache cache;
+    private ForkJoinPool renderPool = null;
+    private final MapRenderScheduler renderScheduler = new MapRenderScheduler();
+    private final MaplandsChunkPool chunkPool = new MaplandsChunkPool();
+    private Task renderSchedulerTask = null;
+    private MaplandsListener listener = null;
 
     public static MapResourcePack getResourcePack() {
         if (resourcePack == null) {
@@ -38,6 +50,24 @@ public class Maplands extends PluginBase {
         return cache;
     }
 
+    /**
+     * Gets the scheduler that divides the render time of a tick among all displays
+     *
+     * @return render scheduler
+     */
+    public MapRenderScheduler getRenderScheduler() {
+        return renderScheduler;
+    }
+
+    /**
+     * Gets the pool of chunks kept loaded for all displays
+     *
+     * @return chunk pool
+     */
+    public MaplandsChunkPool getChunkPool() {
+        return chunkPool;
+    }
+
     public static int getMaxRenderTime() {
         return maxRenderTime;
     }
@@ -54,6 +84,46 @@ public class Maplands extends PluginBase {
         return maxRenderY;
     }
 
+    /**
+     * Gets whether maps are rendered on worker threads using chunk snapshots,
+     * instead of on the main thread
+     *
+     * @return True if rendering asynchronously
+     */
+    public static boolean isAsyncRendering() {
+        return asyncRendering && plugin != null && plugin.renderPool != null;
+    }
+
+    /**
+     * Gets whether chunks that are not loaded are read from the region files of the
+     * world, instead of being loaded on the server. Only used when rendering asynchronously.
+     *
+     * @return True if reading region files
+     */
+    public static boolean isReadingRegionFiles() {
+        return readRegionFiles && isAsyncRendering();
+    }
+
+    /**
+     * Gets whether maps are rendered one tile at a time, walking the blocks
+     * of each tile front-to-back, instead of one depth level at a time
+     *
+     * @return True if rendering per tile
+     */
+    public static boolean isTileRendering() {
+        return tileRendering;
+    }
+
+    /**
+     * Gets the pool of worker threads maps are rendered on when
+     * asynchronous rendering is enabled
+     *
+     * @return render pool, null if asynchronous rendering is disabled
+     */
+    public ForkJoinPool getRenderPool() {
+        return renderPool;
+    }
+
 	@Override
 	public void enable() {
 	    plugin = this;
@@ -72,6 +142,35 @@ public class Maplands extends PluginBase {
 	    config.addHeader("maxRenderTime", "may spend rendering the map during a single tick, per map");
 	    maxRenderTime = config.get("maxRenderTime", 50);
 
+	    config.setHeader("maxTotalRenderTime", "Specifies the maximum amount of time in milliseconds the plugin");
+	    config.addHeader("maxTotalRenderTime", "may spend rendering all maps combined during a single tick");
+	    renderScheduler.setTotalRenderTime(config.get("maxTotalRenderTime", 50));
+
+	    config.setHeader("renderSchedulingPolicy", "How the render time of a tick is divided among maps that are rendering");
+	    config.addHeader("renderSchedulingPolicy", "FAIR_SHARE: all maps get a share weighted by their viewers, taking turns when there are too many");
+	    config.addHeader("renderSchedulingPolicy", "PRIORITY: maps with the most viewers get as much time as they can use first");
+	    String policyName = config.get("renderSchedulingPolicy", MapRenderScheduler.Policy.FAIR_SHARE.name());
+	    renderScheduler.setPolicy(MapRenderScheduler.Policy.FAIR_SHARE);
+	    boolean policyFound = false;
+	    for (MapRenderScheduler.Policy policy : MapRenderScheduler.Policy.values()) {
+	        if (policy.name().equalsIgnoreCase(policyName)) {
+	            renderScheduler.setPolicy(policy);
+	            policyFound = true;
+	        }
+	    }
+	    if (!policyFound) {
+	        this.log(Level.WARNING, "Render scheduling policy '" + policyName + "' does not exist");
+	    }
+
+	    config.setHeader("maxConcurrentChunkLoads", "Maximum number of chunks loaded for rendering maps at the same time");
+	    config.addHeader("maxConcurrentChunkLoads", "Chunks needed by maps with the most viewers are loaded first");
+	    chunkPool.setMaxConcurrentLoads(config.get("maxConcurrentChunkLoads", 16));
+
+	    config.setHeader("generateChunks", "Whether chunks that were never generated are generated when a map shows them");
+	    config.addHeader("generateChunks", "When false, only chunks that exist in the world files are rendered, the rest is shown as void");
+	    config.addHeader("generateChunks", "This keeps large maps of unexplored areas from causing lag generating terrain");
+	    chunkPool.setGeneratingChunks(config.get("generateChunks", true));
+
 	    config.setHeader("minRenderY", "Minimum Y-coordinate height that is rendered (inclusive)");
 	    config.addHeader("minRenderY", "Can be set to a negative number if supported (cubic chunks)");
 	    minRenderY = config.get("minRenderY", 0);
@@ -80,11 +179,42 @@ public class Maplands extends PluginBase {
 	    config.addHeader("maxRenderY", "Can be set to a value beyond 256 if supported (cubic chunks)");
 	    maxRenderY = config.get("maxRenderY", 256);
 
+	    config.setHeader("asyncRendering", "Whether maps are rendered on worker threads instead of the main thread");
+	    config.addHeader("asyncRendering", "Blocks are read from chunk snapshots, and only the finished result is put on the map");
+	    config.addHeader("asyncRendering", "This keeps large displays from using up the tick time of the server");
+	    asyncRendering = config.get("asyncRendering", false);
+
+	    config.setHeader("readRegionFiles", "Whether chunks that are not loaded are read from the world files when asyncRendering is enabled");
+	    config.addHeader("readRegionFiles", "This avoids loading chunks on the server just to render them on a map");
+	    config.addHeader("readRegionFiles", "Chunks that can not be read this way are loaded as usual");
+	    readRegionFiles = config.get("readRegionFiles", false);
+
+	    config.setHeader("renderThreads", "Number of worker threads used when asyncRendering is enabled");
+	    config.addHeader("renderThreads", "When 0 or less, one less than the number of available processors is used");
+	    int renderThreads = config.get("renderThreads", 0);
+	    if (renderThreads <= 0) {
+	        renderThreads = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+	    }
+
+	    config.setHeader("tileRendering", "Whether maps are rendered one tile at a time instead of one depth level at a time");
+	    config.addHeader("tileRendering", "Each tile walks its blocks front-to-back until a block fully covers it");
+	    config.addHeader("tileRendering", "This is faster when only a few layers of blocks are visible, like with flat terrain");
+	    tileRendering = config.get("tileRendering", false);
+
 	    config.setHeader("enableCache", "Whether map data is written to disk and restored when viewed again");
 	    config.addHeader("enableCache", "The rendered map data can be found inside the cache subdirectory");
 	    config.addHeader("enableCache", "Having this enabled will reduce server lag when a large display is initialized");
 	    cache.setEnabled(config.get("enableCache", true));
 
+	    config.setHeader("cacheMemoryLimit", "Maximum size in megabytes of map data kept in memory for maps viewed recently");
+	    config.addHeader("cacheMemoryLimit", "When exceeded, the least recently viewed maps are only kept on disk");
+	    cache.getMemoryCache().setMaxBytes(config.get("cacheMemoryLimit", 64) * 1024L * 1024L);
+
+	    config.setHeader("packedCache", "Whether the map data of all maps is stored in a single file, instead of a file per map");
+	    config.addHeader("packedCache", "This is recommended when a great many maps are used, which slows down file systems");
+	    config.addHeader("packedCache", "When turned off again, maps in the single file are still loaded, and are saved in a file per map");
+	    cache.setPacked(config.get("packedCache", false));
+
 	    config.setHeader("backgroundColor", "The background color of maps showing the void in hexadecimal format, for example: '#1256FE'");
 	    config.addHeader("backgroundColor", "You can use the constants: transparent, black, white, red, green, blue");
 	    String backgroundColorName = config.get("backgroundColor", "transparent");
@@ -126,7 +256,26 @@ public class Maplands extends PluginBase {
 
 	    config.save();
 
-	    this.register(new MaplandsListener());
+	    if (asyncRendering) {
+	        renderPool = new ForkJoinPool(renderThreads, pool -> {
+	            ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+	            thread.setName("Maplands-Render-" + thread.getPoolIndex());
+	            thread.setDaemon(true);
+	            return thread;
+	        }, null, false);
+	    }
+
+	    listener = new MaplandsListener();
+	    renderSchedulerTask = new Task(this) {
+	        @Override
+	        public void run() {
+	            listener.dispatchBlockChanges();
+	            chunkPool.update();
+	            renderScheduler.nextTick();
+	        }
+	    }.start(1, 1);
+
+	    this.register(listener);
 
 	    try {
 	        resourcePack.load();
@@ -137,6 +286,24 @@ public class Maplands extends PluginBase {
 
 	@Override
 	public void disable() {
+	    Task.stop(renderSchedulerTask);
+	    renderSchedulerTask = null;
+	    renderScheduler.clear();
+	    chunkPool.clear();
+	    listener = null;
+
+	    if (renderPool != null) {
+	        renderPool.shutdown();
+	        try {
+	            renderPool.awaitTermination(5, TimeUnit.SECONDS);
+	        } catch (InterruptedException e) {}
+	        renderPool = null;
+	    }
+
+	    if (cache != null) {
+	        cache.close();
+	    }
+
 	    plugin = null;
 	    resourcePack = null;
 	}
@@ -202,6 +369,19 @@ public class Maplands extends PluginBase {
                 sender.sendMessage("No maplands map was found with this UUID. Are the chunks loaded?");
             }
             return true;
+        } else if (args.length > 0 && args[0].equalsIgnoreCase("cache")) {
+            if (!Permission.COMMAND_RENDER.has(sender)) {
+                sender.sendMessage(ChatColor.RED + "No permission to use the cache command!");
+                return true;
+            }
+
+            // The /map cache command, shows statistics of the map data kept in memory
+            MapCanvasMemoryCache memory = this.cache.getMemoryCache();
+            sender.sendMessage("Maps in memory: " + memory.size() + " using " + (memory.getBytes() >> 10) +
+                    " / " + (memory.getMaxBytes() >> 10) + " KB");
+            sender.sendMessage("Hits: " + memory.getHits() + ", Misses: " + memory.getMisses() +
+                    ", Evictions: " + memory.getEvictions());
+            return true;
         } else if (args.length > 0 && args[0].equalsIgnoreCase("give")) {
             if (!Permission.COMMAND_GIVE.has(sender)) {
                 sender.sendMessage(ChatColor.RED + "No permission to use the give command!");
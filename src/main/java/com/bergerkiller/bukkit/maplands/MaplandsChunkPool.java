@@ -0,0 +1,355 @@
+package com.bergerkiller.bukkit.maplands;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+
+import org.bukkit.World;
+
+import com.bergerkiller.bukkit.common.chunk.ForcedChunk;
+import com.bergerkiller.bukkit.common.utils.WorldUtil;
+import com.bergerkiller.bukkit.maplands.anvil.RegionFileReader;
+
+/**
+ * Keeps the chunks that displays need for rendering loaded. Shared by all displays,
+ * so that displays showing the same area load every chunk only once. Chunks are
+ * reference counted by the displays holding them, and are unloaded once all displays
+ * release them, or none of them used it for about a minute.<br>
+ * <br>
+ * Only a limited number of chunks are loaded asynchronously at the same time. Other
+ * requests wait in a queue, ordered by the render priority of the display that asked
+ * for the chunk. Expiry is tracked using a timing wheel, so that only the chunks that
+ * could have expired are checked.<br>
+ * <br>
+ * When generating chunks is disabled, chunks that do not exist yet in the region
+ * files of the world are never loaded. They are reported as missing instead, and
+ * displays show them as void. Whether a chunk exists is checked on a worker thread,
+ * by reading it from the region files. Chunks that are only partially generated
+ * are missing too, as loading them would finish generating them.
+ */
+public class MaplandsChunkPool {
+    /** Number of ticks a chunk is kept loaded after it was last used */
+    public static final int CLOSE_TIMEOUT = 20 * 60; // ~1 minute
+    /** Number of ticks of a single slot of the timing wheel */
+    private static final int WHEEL_SLOT_BITS = 5;
+    /** Number of slots of the timing wheel, together spanning more than the close timeout */
+    private static final int WHEEL_SIZE = 64;
+    private final Map<World, Map<Long, PooledChunk>> worlds = new IdentityHashMap<World, Map<Long, PooledChunk>>();
+    private final List<List<PooledChunk>> wheel = new ArrayList<List<PooledChunk>>(WHEEL_SIZE);
+    private final PriorityQueue<PooledChunk> pending = new PriorityQueue<PooledChunk>(
+            Comparator.comparingInt((PooledChunk c) -> -c.priority).thenComparingLong(c -> c.requestOrder));
+    private final List<PooledChunk> loading = new ArrayList<PooledChunk>();
+    /** Chunks being checked for whether they exist, before they are loaded */
+    private final List<PooledChunk> checking = new ArrayList<PooledChunk>();
+    private int maxConcurrentLoads = 16;
+    private boolean generateChunks = true;
+    private long requestCounter = 0;
+    private int ticks = 0;
+
+    public MaplandsChunkPool() {
+        for (int i = 0; i < WHEEL_SIZE; i++) {
+            this.wheel.add(new ArrayList<PooledChunk>());
+        }
+    }
+
+    /**
+     * Gets the maximum number of chunks that are loaded asynchronously at the same time
+     *
+     * @return maximum concurrent chunk loads
+     */
+    public int getMaxConcurrentLoads() {
+        return this.maxConcurrentLoads;
+    }
+
+    /**
+     * Sets the maximum number of chunks that are loaded asynchronously at the same time
+     *
+     * @param max Maximum concurrent chunk loads
+     */
+    public void setMaxConcurrentLoads(int max) {
+        this.maxConcurrentLoads = Math.max(1, max);
+    }
+
+    /**
+     * Gets whether chunks that do not exist yet are generated when displays need them
+     *
+     * @return True if chunks are generated
+     */
+    public boolean isGeneratingChunks() {
+        return this.generateChunks;
+    }
+
+    /**
+     * Sets whether chunks that do not exist yet are generated when displays need them.
+     * If false, those chunks are reported as missing.
+     *
+     * @param generate Whether to generate chunks
+     */
+    public void setGeneratingChunks(boolean generate) {
+        this.generateChunks = generate;
+    }
+
+    /**
+     * Gets the number of chunks kept loaded, or waiting to be loaded, by this pool
+     *
+     * @return chunk count
+     */
+    public int getChunkCount() {
+        int count = 0;
+        for (Map<Long, PooledChunk> chunks : this.worlds.values()) {
+            count += chunks.size();
+        }
+        return count;
+    }
+
+    /**
+     * Acquires a chunk, loading it if needed. The returned chunk must be released
+     * using {@link #release(PooledChunk)} once no longer needed.
+     * Must be called on the main thread.
+     *
+     * @param world World of the chunk
+     * @param cx Chunk x-coordinate
+     * @param cz Chunk z-coordinate
+     * @param priority Render priority of the display that needs the chunk
+     * @return pooled chunk
+     */
+    public PooledChunk acquire(World world, int cx, int cz, int priority) {
+        Map<Long, PooledChunk> chunks = this.worlds.get(world);
+        if (chunks == null) {
+            chunks = new HashMap<Long, PooledChunk>();
+            this.worlds.put(world, chunks);
+        }
+
+        long key = MapUtil.getChunkKey(cx, cz);
+        PooledChunk chunk = chunks.get(key);
+        if (chunk == null) {
+            chunk = new PooledChunk(this, world, cx, cz, key, priority, this.requestCounter++);
+            chunk.expireTick = this.ticks + CLOSE_TIMEOUT;
+            chunks.put(key, chunk);
+            this.schedule(chunk);
+            if (!this.generateChunks && !world.isChunkLoaded(cx, cz)) {
+                // Check it exists in the region files first, don't generate it
+                this.startChecking(chunk);
+            } else {
+                this.queueLoading(chunk);
+            }
+        } else if (priority > chunk.priority) {
+            // Load it sooner if it is still waiting
+            if (this.pending.remove(chunk)) {
+                chunk.priority = priority;
+                this.pending.add(chunk);
+            } else {
+                chunk.priority = priority;
+            }
+        }
+        chunk.refCount++;
+        return chunk;
+    }
+
+    /**
+     * Releases a chunk acquired before. Once all displays released the chunk,
+     * it is unloaded. Must be called on the main thread.
+     *
+     * @param chunk Chunk to release
+     */
+    public void release(PooledChunk chunk) {
+        if (!chunk.closed && --chunk.refCount <= 0) {
+            this.close(chunk);
+        }
+    }
+
+    /**
+     * Starts loading chunks that are waiting, and unloads chunks that
+     * have not been used for a while. Must be called every tick.
+     */
+    public void update() {
+        this.ticks++;
+
+        // Check the slot of the timing wheel once all its ticks have passed
+        if ((this.ticks & ((1 << WHEEL_SLOT_BITS) - 1)) == 0) {
+            List<PooledChunk> slot = this.wheel.get((this.ticks >> WHEEL_SLOT_BITS) & (WHEEL_SIZE - 1));
+            List<PooledChunk> expired = new ArrayList<PooledChunk>(slot);
+            slot.clear();
+            for (PooledChunk chunk : expired) {
+                if (chunk.closed) {
+                    continue;
+                } else if (this.ticks >= chunk.expireTick) {
+                    this.close(chunk);
+                } else {
+                    this.schedule(chunk); // Was used since, check again later
+                }
+            }
+        }
+
+        // Chunks that exist are loaded, others are missing
+        Iterator<PooledChunk> checkIter = this.checking.iterator();
+        while (checkIter.hasNext()) {
+            PooledChunk chunk = checkIter.next();
+            if (chunk.closed) {
+                checkIter.remove();
+            } else if (chunk.generatedCheck.isDone()) {
+                checkIter.remove();
+                if (chunk.generatedCheck.join() || chunk.world.isChunkLoaded(chunk.cx, chunk.cz)) {
+                    this.queueLoading(chunk);
+                } else {
+                    chunk.missing = true;
+                }
+                chunk.generatedCheck = null;
+            }
+        }
+
+        // Chunks that finished loading make room for chunks that are waiting
+        Iterator<PooledChunk> iter = this.loading.iterator();
+        while (iter.hasNext()) {
+            PooledChunk chunk = iter.next();
+            if (chunk.closed || chunk.forced.getChunkAsync().isDone()) {
+                iter.remove();
+            }
+        }
+        while (this.loading.size() < this.maxConcurrentLoads && !this.pending.isEmpty()) {
+            this.startLoading(this.pending.poll());
+        }
+    }
+
+    /**
+     * Unloads all chunks
+     */
+    public void clear() {
+        for (Map<Long, PooledChunk> chunks : this.worlds.values()) {
+            for (PooledChunk chunk : chunks.values()) {
+                chunk.closed = true;
+                if (chunk.forced != null) {
+                    chunk.forced.close();
+                }
+            }
+        }
+        this.worlds.clear();
+        for (List<PooledChunk> slot : this.wheel) {
+            slot.clear();
+        }
+        this.pending.clear();
+        this.loading.clear();
+        this.checking.clear();
+    }
+
+    private void startChecking(PooledChunk chunk) {
+        ForkJoinPool pool = Maplands.plugin.getRenderPool();
+        if (pool == null) {
+            pool = ForkJoinPool.commonPool();
+        }
+
+        final File regionFolder = MaplandsDisplaySnapshots.getRegionFolder(chunk.world);
+        final int cx = chunk.cx, cz = chunk.cz;
+        chunk.generatedCheck = CompletableFuture.supplyAsync(() -> {
+            try {
+                return RegionFileReader.isChunkGenerated(regionFolder, cx, cz);
+            } catch (Throwable t) {
+                return true; // Stored, but could not be read. Let the server load it.
+            }
+        }, pool);
+        this.checking.add(chunk);
+    }
+
+    private void queueLoading(PooledChunk chunk) {
+        if (this.loading.size() < this.maxConcurrentLoads) {
+            this.startLoading(chunk);
+        } else {
+            this.pending.add(chunk);
+        }
+    }
+
+    private void startLoading(PooledChunk chunk) {
+        chunk.forced = WorldUtil.forceChunkLoaded(chunk.world, chunk.cx, chunk.cz);
+        this.loading.add(chunk);
+    }
+
+    private void schedule(PooledChunk chunk) {
+        // Put it in the slot that is checked right after it expires
+        int slotTick = chunk.expireTick + (1 << WHEEL_SLOT_BITS) - 1;
+        this.wheel.get((slotTick >> WHEEL_SLOT_BITS) & (WHEEL_SIZE - 1)).add(chunk);
+    }
+
+    private void close(PooledChunk chunk) {
+        chunk.closed = true;
+        if (chunk.forced != null) {
+            chunk.forced.close();
+        } else if (!chunk.missing && chunk.generatedCheck == null) {
+            this.pending.remove(chunk);
+        }
+        Map<Long, PooledChunk> chunks = this.worlds.get(chunk.world);
+        if (chunks != null && chunks.get(chunk.key) == chunk) {
+            chunks.remove(chunk.key);
+            if (chunks.isEmpty()) {
+                this.worlds.remove(chunk.world);
+            }
+        }
+    }
+
+    /**
+     * A single chunk kept loaded by the pool
+     */
+    public static final class PooledChunk {
+        private final MaplandsChunkPool pool;
+        public final World world;
+        public final int cx, cz;
+        private final long key;
+        private final long requestOrder;
+        private ForcedChunk forced = null;
+        private CompletableFuture<Boolean> generatedCheck = null;
+        private int priority;
+        private int refCount = 0;
+        private int expireTick;
+        private boolean closed = false;
+        private boolean missing = false;
+
+        private PooledChunk(MaplandsChunkPool pool, World world, int cx, int cz, long key, int priority, long requestOrder) {
+            this.pool = pool;
+            this.world = world;
+            this.cx = cx;
+            this.cz = cz;
+            this.key = key;
+            this.priority = priority;
+            this.requestOrder = requestOrder;
+        }
+
+        /**
+         * Gets whether this chunk was unloaded by the pool. A closed
+         * chunk must be acquired again to load it again.
+         *
+         * @return True if closed
+         */
+        public boolean isClosed() {
+            return this.closed;
+        }
+
+        /**
+         * Gets whether this chunk does not exist, and is not loaded because
+         * generating chunks is disabled. Such chunks should be shown as void.
+         *
+         * @return True if missing
+         */
+        public boolean isMissing() {
+            return this.missing;
+        }
+
+        /**
+         * Marks this chunk as used, keeping it loaded for longer,
+         * and checks whether the chunk has finished loading.
+         * Missing chunks are never loaded, and are done right away.
+         *
+         * @return True if the chunk is loaded or missing
+         */
+        public boolean checkLoaded() {
+            this.expireTick = this.pool.ticks + CLOSE_TIMEOUT;
+            return this.missing || (this.forced != null && this.forced.getChunkAsync().isDone());
+        }
+    }
+}
@@ -1,9 +1,14 @@
 package com.bergerkiller.bukkit.maplands;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 
 import org.bukkit.Bukkit;
 import org.bukkit.ChatColor;
@@ -36,8 +41,8 @@ import com.bergerkiller.bukkit.maplands.markers.MapMarkers;
 import com.bergerkiller.bukkit.maplands.menu.MenuButton;
 import com.bergerkiller.bukkit.maplands.menu.SettingsMenu;
 import com.bergerkiller.bukkit.maplands.util.Linked2DTile;
-import com.bergerkiller.bukkit.maplands.util.Linked2DTileList;
 import com.bergerkiller.bukkit.maplands.util.Linked2DTileSet;
+import com.bergerkiller.bukkit.maplands.util.TileFrontBlocks;
 
 /**
  * Main display class of Maplands. Renders the world on the map and provides
@@ -45,8 +50,13 @@ import com.bergerkiller.bukkit.maplands.util.Linked2DTileSet;
  */
 public class MaplandsDisplay extends MapDisplay {
     private final MapMarkers mapMarkers = new MapMarkers(this);
-    private final MaplandsDisplayChunks chunks = new MaplandsDisplayChunks();
+    private final MaplandsDisplayChunks chunks = new MaplandsDisplayChunks(this::getRenderPriority);
+    private final MaplandsDisplaySnapshots snapshots = new MaplandsDisplaySnapshots();
     private IsometricBlockSprites sprites;
+    private MapSliceRenderer renderer;
+    private List<MapRenderPartition> partitions = null;
+    private AsyncRenderJob renderJob = null;
+    private CompletableFuture<MapCanvasCache.Item> pendingCacheLoad = null;
     private ZoomLevel zoom;
     private BlockFace facing;
     private Block startBlock;
@@ -58,6 +68,7 @@ public class MaplandsDisplay extends MapDisplay {
     private int maximumRenderZ;
     private int minCols, maxCols, minRows, maxRows;
     private Linked2DTileSet tilesThatNeedDrawing = new Linked2DTileSet();
+    private TileFrontBlocks frontBlocks = new TileFrontBlocks(0, -1, 0, -1);
     private final HashSet<IntVector3> dirtyTiles = new HashSet<IntVector3>();
     private MenuButton[] menuButtons;
     private MapTexture menu_bg;
@@ -107,10 +118,13 @@ public class MaplandsDisplay extends MapDisplay {
         this.setSessionMode(MapSessionMode.FOREVER); // VIEWING for debug, FOREVER for release
 
         // Load from cache if possible
-        if (Maplands.plugin.getCache().load(this.properties.getUniqueId(), this.getLayer())) {
-            this.render(RenderMode.FROM_CACHE);
+        // If it has to be read from disk, that is done in the background, and
+        // until it is done the map shows the background color
+        this.pendingCacheLoad = Maplands.plugin.getCache().loadAsync(this.properties.getUniqueId());
+        if (this.pendingCacheLoad.isDone()) {
+            this.finishCacheLoad();
         } else {
-            this.render(RenderMode.INITIALIZE);
+            this.getLayer().fill(Maplands.getBackgroundColor());
         }
 
         refreshMapDisplayLookup();
@@ -120,17 +134,39 @@ public class MaplandsDisplay extends MapDisplay {
     public void onDetached() {
         refreshMapDisplayLookup();
 
+        // Wait for rendering in the background to finish, so the latest state is saved
+        stopRenderJob();
+        Maplands.plugin.getRenderScheduler().remove(this);
+
         // Save our current state to disk
-        Maplands.plugin.getCache().save(this.properties.getUniqueId(), this.getLayer());
+        // If still loading it from the cache, the map shows nothing worth saving
+        if (this.pendingCacheLoad != null) {
+            this.pendingCacheLoad = null;
+        } else {
+            Maplands.plugin.getCache().save(this.properties.getUniqueId(), this.getLayer(), this.getCacheView());
+        }
 
         // Release chunks we keep loaded
         chunks.clear();
+        snapshots.clear();
     }
 
     public MapDisplayProperties getProperties() {
         return super.properties;
     }
 
+    /**
+     * Gets the view parameters of this display, stored in the cache together
+     * with the rendered canvas
+     *
+     * @return cache view
+     */
+    private MapCanvasCache.View getCacheView() {
+        return new MapCanvasCache.View(properties.get("mapWorld", ""),
+                properties.get("facing", BlockFace.NORTH_EAST), properties.get("zoom", ZoomLevel.DEFAULT),
+                properties.get("px", 0), properties.get("py", 0), properties.get("pz", 0));
+    }
+
     private static enum RenderMode {
         /** Renders the entire map from scratch */
         INITIALIZE,
@@ -140,7 +176,27 @@ public class MaplandsDisplay extends MapDisplay {
         TRANSLATION
     }
 
+    /**
+     * Writes the canvas read from the cache onto the map, once it was read, and starts
+     * rendering. If nothing was stored in the cache, the map is rendered from scratch.
+     */
+    private void finishCacheLoad() {
+        MapCanvasCache.Item item = this.pendingCacheLoad.handle((result, error) -> result).join();
+        this.pendingCacheLoad = null;
+        if (Maplands.plugin.getCache().apply(this.properties.getUniqueId(), item, this.getLayer(), this.getCacheView())) {
+            this.render(RenderMode.FROM_CACHE);
+        } else {
+            this.render(RenderMode.INITIALIZE);
+        }
+    }
+
     private void render(RenderMode renderMode) {
+        // Stop rendering in the background, as the tile state is reset below
+        stopRenderJob();
+
+        // Rendering started for another reason, so what is read from the cache is outdated
+        this.pendingCacheLoad = null;
+
         // If no start block is initialized yet, always switch to mode INITIALIZE
         // This is used if a world is unloaded, but is then loaded again
         if (startBlock == null && renderMode != RenderMode.FROM_CACHE) {
@@ -179,6 +235,9 @@ public class MaplandsDisplay extends MapDisplay {
 
         // Start coordinates for the view
         this.startBlock = world.getBlockAt(px, py, pz);
+        this.renderer = new MapSliceRenderer(this.getLayer(),
+                this.getLayer().getWidth() >> 1, this.getLayer().getHeight() >> 1,
+                this.sprites, this.facing, px, py, pz, new BlockSource.LiveWorld(world, this.chunks));
         this.getLayer().setRelativeBrushMask(null);
         //this.getLayer().setDrawDepth(-VIEW_RANGE);
         //this.getLayer().fill(MapColorPalette.COLOR_RED);
@@ -204,6 +263,7 @@ public class MaplandsDisplay extends MapDisplay {
                 this.minCols, this.minimumRenderZ, this.minRows,
                 this.maxCols, this.maximumRenderZ, this.maxRows);
         this.blockBounds.offset(this.startBlock);
+        display_index.invalidate();
 
         if (renderMode == RenderMode.FROM_CACHE && this.properties.get("finishedRendering", false)) {
             this.currentRenderZ = this.maximumRenderZ + 1;
@@ -214,9 +274,22 @@ public class MaplandsDisplay extends MapDisplay {
 
         this.dirtyTiles.clear();
 
+        // Which blocks are in front is not known until tiles are rendered again
+        if (this.minCols != this.tilesThatNeedDrawing.getMinX() ||
+            this.maxCols != this.tilesThatNeedDrawing.getMaxX() ||
+            this.minRows != this.tilesThatNeedDrawing.getMinY() ||
+            this.maxRows != this.tilesThatNeedDrawing.getMaxY())
+        {
+            this.frontBlocks = new TileFrontBlocks(this.minCols, this.maxCols, this.minRows, this.maxRows);
+        } else {
+            this.frontBlocks.clearAll();
+        }
+        this.renderer.setFrontBlocks(this.frontBlocks);
+
         // Reset drawn tiles state when initializing / from cache
         // This will cause everything to render again
         if (renderMode != RenderMode.TRANSLATION) {
+            this.snapshots.clear();
             if (this.minCols != this.tilesThatNeedDrawing.getMinX() ||
                 this.maxCols != this.tilesThatNeedDrawing.getMaxX() ||
                 this.minRows != this.tilesThatNeedDrawing.getMinY() ||
@@ -249,11 +322,28 @@ public class MaplandsDisplay extends MapDisplay {
         return this.blockBounds.contains(bx, by, bz);
     }
 
+    /**
+     * Gets the range of block coordinates that could be displayed on this map
+     *
+     * @return block bounds
+     */
+    public MapBlockBounds getBlockBounds() {
+        return this.blockBounds;
+    }
+
     public void onBlockChange(Block block) {
         onBlockChange(block.getWorld(), block.getX(), block.getY(), block.getZ());
     }
 
     public void onBlockChange(World world, int bx, int by, int bz) {
+        // Keep what the renderer knows about the chunk correct, even while not refreshing
+        if (this.startBlock != null
+                && world == this.startBlock.getWorld()
+                && this.blockBounds.contains(bx, by, bz)
+        ) {
+            this.renderer.invalidateBlock(bx, by, bz);
+        }
+
         // Check possibly in range before doing computationally expensive stuff
         if (this.startBlock != null
                 && world == this.startBlock.getWorld()
@@ -267,13 +357,26 @@ public class MaplandsDisplay extends MapDisplay {
             if (tile == null || tile.x < this.minCols || tile.x > this.maxCols || tile.y < this.minRows || tile.y > this.maxRows) {
                 return;
             }
-            this.dirtyTiles.add(tile);
+
+            // Snapshot of this chunk is outdated, must be captured again for rendering in the background
+            this.snapshots.invalidateBlock(bx, bz);
+
+            // Blocks hidden behind an opaque block can not be seen, so don't redraw them
+            if (!this.frontBlocks.isHidden(tile.x, tile.y, tile.z)) {
+                this.dirtyTiles.add(tile);
+            }
         }
     }
 
     private void invalidateTile(int tx, int ty, int tz) {
         if (tx >= this.minCols && tx <= this.maxCols && ty >= this.minRows && ty <= this.maxRows) {
             this.tilesThatNeedDrawing.set(tx, ty);
+            this.renderer.invalidateTile(tx, ty, tz);
+            if (this.partitions != null) {
+                for (MapRenderPartition partition : this.partitions) {
+                    partition.invalidateTile(tx, ty, tz);
+                }
+            }
             if (this.currentRenderZ > tz) {
                 this.currentRenderZ = tz;
             }
@@ -343,12 +446,7 @@ public class MaplandsDisplay extends MapDisplay {
      * @return result of the drawing operation
      */
     public DrawResult drawBlockTile(int tx, int ty, int tz, boolean isRedraw) {
-        IntVector3 b = MapUtil.screenTileToBlock(this.facing, tx, ty, tz);
-        if (b != null) {
-            return drawBlockAtTile(b, tx, ty, isRedraw);
-        } else {
-            return DrawResult.PARTIALLY_DRAWN;
-        }
+        return this.renderer.drawBlockTile(tx, ty, tz, isRedraw);
     }
 
     /**
@@ -362,37 +460,7 @@ public class MaplandsDisplay extends MapDisplay {
      * @return result of the drawing operation
      */
     public DrawResult drawBlockAtTile(IntVector3 relativeBlockCoords, int tx, int ty, boolean isRedraw) {
-        int x = this.startBlock.getX() + relativeBlockCoords.x;
-        int y = this.startBlock.getY() + relativeBlockCoords.y;
-        int z = this.startBlock.getZ() + relativeBlockCoords.z;
-        if (y < Maplands.getMinRenderY()) {
-            return DrawResult.FULLY_DRAWN;
-        } else if (y >= Maplands.getMaxRenderY()) {
-            return DrawResult.PARTIALLY_DRAWN;
-        } else {
-            if (!this.chunks.cacheBlock(this.startBlock.getWorld(), x, z)) {
-                return DrawResult.NOT_DRAWN;
-            }
-
-            IsometricBlockSprites.Sprite sprite = this.sprites.getSprite(this.startBlock.getWorld(), x, y, z);
-            if (sprite != this.sprites.AIR || !isRedraw) {
-                int draw_x = sprites.getZoom().getDrawX(tx) + (this.getWidth() >> 1);
-                int draw_y = sprites.getZoom().getDrawY(ty) + (this.getHeight() >> 1);
-
-                MapTexture texture = sprite.texture;
-                getLayer().draw(texture, draw_x, draw_y);
-                if (sprite.isFullyOpaque) {
-                    // Fully opaque sprite, no need to check
-                    return DrawResult.FULLY_DRAWN;
-                } else {
-                    // Ask canvas whether any more pixels remain to be drawn
-                    return getLayer().hasMoreDepth(draw_x, draw_y, texture.getWidth(), texture.getHeight()) ?
-                            DrawResult.PARTIALLY_DRAWN : DrawResult.FULLY_DRAWN;
-                }
-            } else {
-                return DrawResult.PARTIALLY_DRAWN;
-            }
-        }
+        return this.renderer.drawBlockAtTile(relativeBlockCoords, tx, ty, isRedraw);
     }
 
     public void hideMenu() {
@@ -563,6 +631,9 @@ public class MaplandsDisplay extends MapDisplay {
      * @param dz Delta in start block Z-coordinate
      */
     public void moveStartBlock(int dx, int dy, int dz) {
+        // Tile state and pixels are moved below, so stop rendering in the background first
+        stopRenderJob();
+
         int old_x = this.properties.get("px", 0);
         int old_y = this.properties.get("py", 0);
         int old_z = this.properties.get("pz", 0);
@@ -712,8 +783,11 @@ public class MaplandsDisplay extends MapDisplay {
      * @param worldName
      */
     private void renderWorldUnloaded(String worldName) {
+        this.stopRenderJob();
         this.startBlock = null;
+        display_index.invalidate();
         this.chunks.clear();
+        this.snapshots.clear();
         this.hideMenu();
         this.clearMarkers();
         this.clearWidgets();
@@ -750,44 +824,132 @@ public class MaplandsDisplay extends MapDisplay {
     }
 
     /**
-     * Renders a single depth level onto the canvas
-     * 
-     * @param depth The depth to render (same as z-coordinate of the tile)
-     * @return result of drawing the slice
+     * Gets the priority of this display when dividing render time among displays.
+     * Every viewer adds to the priority, and viewers holding the map add twice as much.
+     * Displays with a higher priority receive more render time.
+     *
+     * @return render priority, 0 if nobody is viewing the display
      */
-    private DrawResult renderSlice(int depth) {
-        getLayer().setDrawDepth(depth);
-        boolean mapIsFullyDrawn = true;
-        boolean sliceHasNotDrawnTiles = false;
+    public int getRenderPriority() {
+        int priority = 0;
+        for (Player viewer : this.getViewers()) {
+            priority += this.isHolding(viewer) ? 2 : 1;
+        }
+        return priority;
+    }
 
-        {
-            Linked2DTileList list = this.tilesThatNeedDrawing.getValidTiles(depth);
-            Linked2DTile current = list.head;
-            while ((current = current.next) != list.tail) {
-                switch (drawBlockAtTile(current.toBlock(this.facing, depth), current.x, current.y, true)) {
-                case NOT_DRAWN:
-                    sliceHasNotDrawnTiles = true;
-                    break;
-                case PARTIALLY_DRAWN:
-                    mapIsFullyDrawn = false;
-                    break;
-                case FULLY_DRAWN:
-                    // Fully covered. No longer render this tile!
-                    current = current.remove();
-                    break;
-                }
+    /**
+     * Gets whether rendering of this display is paused, because nobody is viewing it.
+     * The render progress is kept, and rendering resumes once somebody views it again.
+     *
+     * @return True if paused
+     */
+    public boolean isPaused() {
+        return this.getViewers().isEmpty();
+    }
+
+    /**
+     * Gets the render partitions of this display, ordered so that the partitions
+     * closest to what viewers are looking at come first. For viewers holding the map,
+     * this is the first map section they see in their hand. For other viewers,
+     * it is where on the map they are standing.
+     *
+     * @return partitions sorted by viewer focus
+     */
+    private List<MapRenderPartition> getPartitionsByViewerFocus() {
+        List<Vector> focus = new ArrayList<Vector>();
+        for (Player viewer : this.getViewers()) {
+            if (this.isHolding(viewer)) {
+                focus.add(new Vector(MapRenderPartition.SIZE >> 1, MapRenderPartition.SIZE >> 1, 0));
+            } else if (viewer.getWorld() == this.startBlock.getWorld()) {
+                focus.add(this.getScreenCoordinates(viewer.getLocation().toVector()));
             }
         }
+        if (focus.isEmpty()) {
+            return this.partitions;
+        }
 
-        if (sliceHasNotDrawnTiles) {
-            return DrawResult.NOT_DRAWN;
-        } else if (mapIsFullyDrawn) {
-            return DrawResult.FULLY_DRAWN;
-        } else {
-            return DrawResult.PARTIALLY_DRAWN;
+        List<MapRenderPartition> sorted = new ArrayList<MapRenderPartition>(this.partitions);
+        Collections.sort(sorted, Comparator.comparingDouble(partition -> {
+            double distance = Double.MAX_VALUE;
+            for (Vector point : focus) {
+                distance = Math.min(distance, partition.getDistanceSquared(point.getX(), point.getY()));
+            }
+            return distance;
+        }));
+        return sorted;
+    }
+
+    /**
+     * Continues rendering the map on worker threads. If a previous batch of slices
+     * finished rendering, the result is put on the map first. A new batch is started
+     * once all the chunks it needs have been captured.<br>
+     * <br>
+     * The display is split into partitions of one map each, which are rendered in parallel.
+     * Each partition keeps track of its own tiles and render depth. Until the partitions
+     * are discarded, the {@link #tilesThatNeedDrawing} are not kept up to date.
+     */
+    private void tickAsyncRender() {
+        if (this.renderJob != null) {
+            if (!this.renderJob.isDone()) {
+                return; // Still busy
+            }
+            this.applyRenderJob();
+        }
+        if (this.currentRenderZ > this.maximumRenderZ || !Maplands.isAsyncRendering() || this.isPaused()) {
+            return; // Done, no longer rendering asynchronously, or nobody is looking
+        }
+
+        // Capture the chunks the previous batch could not find. Wait until all are available.
+        if (!this.snapshots.captureMissing(this.startBlock.getWorld(), this.chunks)) {
+            return;
+        }
+
+        if (this.partitions == null) {
+            this.partitions = MapRenderPartition.create(this.getLayer(), this.sprites, this.facing,
+                    this.startBlock.getX(), this.startBlock.getY(), this.startBlock.getZ(), this.snapshots,
+                    this.tilesThatNeedDrawing, this.currentRenderZ, this.maximumRenderZ);
+        }
+
+        // Sections viewers are looking at are rendered first
+        this.renderJob = new AsyncRenderJob(this.getLayer(), this.frontBlocks, this.getPartitionsByViewerFocus(),
+                Maplands.plugin.getRenderPool().getParallelism());
+        this.renderJob.start(Maplands.plugin.getRenderPool());
+    }
+
+    /**
+     * Stops rendering on worker threads, if it is, and puts what has been
+     * rendered so far on the map. The partitions are discarded and the
+     * {@link #tilesThatNeedDrawing} updated with their progress. Afterwards
+     * the tile state of this display can be modified again.
+     */
+    private void stopRenderJob() {
+        if (this.renderJob != null) {
+            this.renderJob.stop();
+            this.applyRenderJob();
+        }
+        if (this.partitions != null) {
+            MapRenderPartition.updateTiles(this.partitions, this.tilesThatNeedDrawing);
+            this.partitions = null;
         }
     }
 
+    private void applyRenderJob() {
+        AsyncRenderJob job = this.renderJob;
+        this.renderJob = null;
+        job.apply(this.getLayer(), this.frontBlocks);
+        this.getLayer().setRelativeBrushMask(this.sprites.getBrushTexture());
+
+        // Continue at the lowest depth of all partitions that have not finished yet
+        int renderZ = this.maximumRenderZ + 1;
+        for (MapRenderPartition partition : this.partitions) {
+            if (!partition.isFinished()) {
+                renderZ = Math.min(renderZ, partition.getRenderZ());
+            }
+        }
+        this.currentRenderZ = renderZ;
+    }
+
     @Override
     public void onRightClick(MapClickEvent event) {
         if (!event.getPlayer().isSneaking()) {
@@ -801,6 +963,11 @@ public class MaplandsDisplay extends MapDisplay {
         // that are not sneaking and have permission to edit
         updateCheckHolding();
 
+        // Once read from the cache, put it on the map and start rendering
+        if (this.pendingCacheLoad != null && this.pendingCacheLoad.isDone()) {
+            this.finishCacheLoad();
+        }
+
         // If not loaded, do nothing
         if (this.startBlock == null) {
             return;
@@ -832,9 +999,16 @@ public class MaplandsDisplay extends MapDisplay {
         // Unload chunks we haven't used in a while
         this.chunks.update();
 
+        // Nobody is looking at this display, so pause rendering until somebody does
+        // The render progress is kept. Rendering on worker threads is allowed to finish.
+        if (this.isPaused() && this.renderJob == null) {
+            return;
+        }
+
         // Re-render all dirty tiles
         // If they result in holes, schedule the area behind for re-rendering
-        if (!dirtyTiles.isEmpty()) {
+        // While rendering in the background the tile state can not be changed, so wait
+        if (!dirtyTiles.isEmpty() && this.renderJob == null) {
             Iterator<IntVector3> iter = this.dirtyTiles.iterator();
             while (iter.hasNext()) {
                 IntVector3 tile = (IntVector3) iter.next();
@@ -858,21 +1032,37 @@ public class MaplandsDisplay extends MapDisplay {
             }
         }
 
-        // Render at most 50 ms / map / tick
-        long startTime = System.currentTimeMillis();
-        if (this.currentRenderZ <= this.maximumRenderZ) {
+        if (this.currentRenderZ <= this.maximumRenderZ || this.renderJob != null) {
             rendertime++;
-            do {
-                DrawResult sliceResult = renderSlice(currentRenderZ);
-                if (sliceResult == DrawResult.FULLY_DRAWN) {
-                    this.currentRenderZ = this.maximumRenderZ + 1;
-                    break;
-                } else if (sliceResult == DrawResult.NOT_DRAWN) {
-                    break; // Try same slice again next tick
+            if (this.renderJob != null || Maplands.isAsyncRendering()) {
+                // Render on a worker thread, only put the result on the map here
+                tickAsyncRender();
+            } else {
+                // Render for as long as the scheduler allows this tick, at most 50 ms / map / tick
+                MapRenderScheduler scheduler = Maplands.plugin.getRenderScheduler();
+                int renderTime = scheduler.getRenderTime(this);
+                if (renderTime > 0) {
+                    long startTime = System.nanoTime();
+                    long deadline = startTime + TimeUnit.MILLISECONDS.toNanos(renderTime);
+                    if (Maplands.isTileRendering()) {
+                        // Render tiles front-to-back
+                        this.currentRenderZ = this.renderer.renderTiles(this.tilesThatNeedDrawing,
+                                this.currentRenderZ, this.maximumRenderZ, deadline);
+                    } else {
+                        // Render depth slices, tiles waiting for chunks continue once they are loaded
+                        this.currentRenderZ = this.renderer.renderSlices(this.tilesThatNeedDrawing,
+                                this.currentRenderZ, this.maximumRenderZ, deadline, () -> false);
+                    }
+                    scheduler.finish(renderTime, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime));
                 }
-            } while (++this.currentRenderZ <= this.maximumRenderZ && (System.currentTimeMillis() - startTime) < Maplands.getMaxRenderTime());
+            }
+
+            if (this.renderJob == null && this.currentRenderZ > this.maximumRenderZ) {
+                // Snapshots and partitions are no longer needed, block changes are drawn from the live world
+                this.stopRenderJob();
+                this.snapshots.clear();
+                Maplands.plugin.getRenderScheduler().remove(this);
 
-            if (this.currentRenderZ > this.maximumRenderZ) {
                 // Fill all remaining holes with the desired background color
                 for (int x = 0; x < this.getWidth(); x++) {
                     for (int y = 0; y < this.getHeight(); y++) {
@@ -885,7 +1075,7 @@ public class MaplandsDisplay extends MapDisplay {
                 // Store in attributes that it has finished rendering
                 if (!properties.get("finishedRendering", false)) {
                     properties.set("finishedRendering", true);
-                    Maplands.plugin.getCache().save(this.properties.getUniqueId(), this.getLayer());
+                    Maplands.plugin.getCache().save(this.properties.getUniqueId(), this.getLayer(), this.getCacheView());
                 }
 
                 // CommonUtil.broadcast("Render time: " + rendertime + " ticks");
@@ -896,15 +1086,18 @@ public class MaplandsDisplay extends MapDisplay {
     // Refreshed automatically and cached
     // It is used very often to handle block physics; this makes this faster
     private static Collection<MaplandsDisplay> all_maplands_displays = Collections.emptySet();
+    private static final MaplandsDisplayIndex display_index = new MaplandsDisplayIndex();
     private static Task refresh_mapdisplays_task = null;
     private static void refreshMapDisplayLookup() {
         // Refresh now, and again one tick delayed, to be sure it is updated.
         all_maplands_displays = MapDisplay.getAllDisplays(MaplandsDisplay.class);
+        display_index.invalidate();
         if (refresh_mapdisplays_task == null) {
             refresh_mapdisplays_task = new Task(Maplands.plugin) {
                 @Override
                 public void run() {
                     all_maplands_displays = MapDisplay.getAllDisplays(MaplandsDisplay.class);
+                    display_index.invalidate();
                     refresh_mapdisplays_task = null;
                 }
             };
@@ -915,6 +1108,19 @@ public class MaplandsDisplay extends MapDisplay {
         return all_maplands_displays;
     }
 
+    /**
+     * Gets the displays that could show a block, or one of the 6 blocks neighbouring it.
+     * Used to handle block changes without checking every display.
+     *
+     * @param world World of the block
+     * @param bx Block x-coordinate
+     * @param bz Block z-coordinate
+     * @return displays that could show the block
+     */
+    public static Collection<MaplandsDisplay> getDisplaysNear(World world, int bx, int bz) {
+        return display_index.getDisplays(world, bx, bz);
+    }
+
     /**
      * Result of drawing a single block tile
      */
@@ -3,33 +3,45 @@ package com.bergerkiller.bukkit.maplands;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.function.IntSupplier;
 
 import org.bukkit.World;
 
-import com.bergerkiller.bukkit.common.bases.IntVector2;
-import com.bergerkiller.bukkit.common.chunk.ForcedChunk;
 import com.bergerkiller.bukkit.common.utils.MathUtil;
-import com.bergerkiller.bukkit.common.utils.WorldUtil;
+import com.bergerkiller.bukkit.maplands.MaplandsChunkPool.PooledChunk;
 
 /**
- * Asynchronously loads chunks needed to render a map
+ * Asynchronously loads chunks needed to render a map. The chunks are
+ * acquired from the {@link MaplandsChunkPool} shared by all displays,
+ * and released again when the display no longer needs them.
  */
 public class MaplandsDisplayChunks {
+    private final IntSupplier priority;
     private World world = null;
-    private final Map<IntVector2, LoadedChunk> cache = new HashMap<IntVector2, LoadedChunk>();
-    private LoadedChunk lastValue = null;
+    private final Map<Long, PooledChunk> cache = new HashMap<Long, PooledChunk>();
+    private PooledChunk lastValue = null;
     private int ticks = 0;
 
+    /**
+     * Creates new display chunks
+     *
+     * @param priority Supplies the render priority of the display, used to order chunk loading
+     */
+    public MaplandsDisplayChunks(IntSupplier priority) {
+        this.priority = priority;
+    }
+
     public void update() {
         lastValue = null;
-        ticks++;
 
-        Iterator<LoadedChunk> iter = cache.values().iterator();
-        while (iter.hasNext()) {
-            LoadedChunk chunk = iter.next();
-            if (ticks >= chunk.timeout) {
-                chunk.close();
-                iter.remove();
+        // Forget chunks the pool unloaded because they were not used in a while
+        if (++ticks >= MaplandsChunkPool.CLOSE_TIMEOUT) {
+            ticks = 0;
+            Iterator<PooledChunk> iter = cache.values().iterator();
+            while (iter.hasNext()) {
+                if (iter.next().isClosed()) {
+                    iter.remove();
+                }
             }
         }
     }
@@ -40,54 +52,62 @@ public class MaplandsDisplayChunks {
 
     public boolean cacheChunk(World world, int x, int z) {
         if (this.world != world) {
-            this.world = world;
             clear();
+            this.world = world;
         }
 
         // If same as last value, return that instantly
         // Saves a lookup while scanning blocks
-        if (lastValue != null && lastValue.getX() == x && lastValue.getZ() == z) {
-            return lastValue.checkLoaded(this.ticks);
+        if (lastValue != null && lastValue.cx == x && lastValue.cz == z && !lastValue.isClosed()) {
+            return lastValue.checkLoaded();
         }
 
-        lastValue = cache.computeIfAbsent(new IntVector2(x, z), c -> new LoadedChunk(this.world, c.x, c.z, this.ticks));
-        return lastValue.checkLoaded(this.ticks);
-    }
-
-    public void clear() {
-        for (LoadedChunk chunk : cache.values()) {
-            chunk.close();
+        long key = MapUtil.getChunkKey(x, z);
+        PooledChunk chunk = cache.get(key);
+        if (chunk == null || chunk.isClosed()) {
+            chunk = Maplands.plugin.getChunkPool().acquire(world, x, z, priority.getAsInt());
+            cache.put(key, chunk);
         }
-        cache.clear();
-        lastValue = null;
+        lastValue = chunk;
+        return chunk.checkLoaded();
     }
 
-    private static class LoadedChunk implements AutoCloseable {
-        private static final int CLOSE_TIMEOUT = 20 * 60; // ~1 minute
-        public final ForcedChunk chunk;
-        public int timeout;
-
-        public LoadedChunk(World world, int x, int z, int ticks) {
-            this.chunk = WorldUtil.forceChunkLoaded(world, x, z);
-            this.timeout = ticks + CLOSE_TIMEOUT;
-        }
-
-        public int getX() {
-            return chunk.getX();
-        }
-
-        public int getZ() {
-            return chunk.getZ();
-        }
+    /**
+     * Gets whether the chunk containing a block does not exist, and will not be
+     * loaded, because generating chunks is disabled
+     *
+     * @param world World
+     * @param x Block x-coordinate
+     * @param z Block z-coordinate
+     * @return True if the chunk is missing
+     * @see MaplandsChunkPool#setGeneratingChunks(boolean)
+     */
+    public boolean isBlockMissing(World world, int x, int z) {
+        return isChunkMissing(world, MathUtil.toChunk(x), MathUtil.toChunk(z));
+    }
 
-        public boolean checkLoaded(int ticks) {
-            this.timeout = ticks + CLOSE_TIMEOUT;
-            return chunk.getChunkAsync().isDone();
-        }
+    /**
+     * Gets whether a chunk does not exist, and will not be loaded,
+     * because generating chunks is disabled
+     *
+     * @param world World
+     * @param x Chunk x-coordinate
+     * @param z Chunk z-coordinate
+     * @return True if the chunk is missing
+     * @see MaplandsChunkPool#setGeneratingChunks(boolean)
+     */
+    public boolean isChunkMissing(World world, int x, int z) {
+        return cacheChunk(world, x, z) && lastValue.isMissing();
+    }
 
-        @Override
-        public void close() {
-            chunk.close();
+    public void clear() {
+        MaplandsChunkPool pool = (Maplands.plugin == null) ? null : Maplands.plugin.getChunkPool();
+        if (pool != null) {
+            for (PooledChunk chunk : cache.values()) {
+                pool.release(chunk);
+            }
         }
+        cache.clear();
+        lastValue = null;
     }
 }
@@ -0,0 +1,94 @@
+package com.bergerkiller.bukkit.maplands;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.bukkit.World;
+import org.bukkit.block.Block;
+
+/**
+ * Spatial index of the Maplands displays, used to quickly find the displays
+ * that could show a block that changed. The world is divided into square cells
+ * of x/z block coordinates, and every display is stored in all the cells its
+ * {@link MapBlockBounds} overlap. The bounds are grown by one block, so that the
+ * displays of a cell also include those that show the neighbouring blocks of a
+ * block inside the cell.<br>
+ * <br>
+ * The index is rebuilt the first time it is used after being invalidated.
+ * It must be invalidated when displays are added or removed, or when the
+ * area a display shows changes.
+ */
+public class MaplandsDisplayIndex {
+    /** Cells are 64x64 blocks in size */
+    private static final int CELL_BITS = 6;
+    private final Map<World, Map<Long, List<MaplandsDisplay>>> worlds = new IdentityHashMap<World, Map<Long, List<MaplandsDisplay>>>();
+    private boolean valid = false;
+
+    /**
+     * Marks the index as outdated, so it is rebuilt the next time it is used
+     */
+    public void invalidate() {
+        this.valid = false;
+    }
+
+    /**
+     * Gets all the displays that could show the block at the coordinates
+     * specified, or one of the 6 blocks neighbouring it.
+     *
+     * @param world World of the block
+     * @param bx Block x-coordinate
+     * @param bz Block z-coordinate
+     * @return displays that could show the block, empty if none do
+     */
+    public Collection<MaplandsDisplay> getDisplays(World world, int bx, int bz) {
+        if (!this.valid) {
+            this.rebuild(MaplandsDisplay.getAllDisplays());
+        }
+
+        Map<Long, List<MaplandsDisplay>> cells = this.worlds.get(world);
+        if (cells == null) {
+            return Collections.emptyList();
+        }
+        List<MaplandsDisplay> displays = cells.get(MapUtil.getChunkKey(bx >> CELL_BITS, bz >> CELL_BITS));
+        return (displays == null) ? Collections.<MaplandsDisplay>emptyList() : displays;
+    }
+
+    private void rebuild(Collection<MaplandsDisplay> displays) {
+        this.worlds.clear();
+        this.valid = true;
+        for (MaplandsDisplay display : displays) {
+            Block startBlock = display.getStartBlock();
+            if (startBlock == null) {
+                continue;
+            }
+
+            Map<Long, List<MaplandsDisplay>> cells = this.worlds.get(startBlock.getWorld());
+            if (cells == null) {
+                cells = new HashMap<Long, List<MaplandsDisplay>>();
+                this.worlds.put(startBlock.getWorld(), cells);
+            }
+
+            MapBlockBounds bounds = display.getBlockBounds();
+            int minCellX = (bounds.getMinX() - 1) >> CELL_BITS;
+            int minCellZ = (bounds.getMinZ() - 1) >> CELL_BITS;
+            int maxCellX = (bounds.getMaxX() + 1) >> CELL_BITS;
+            int maxCellZ = (bounds.getMaxZ() + 1) >> CELL_BITS;
+            for (int cx = minCellX; cx <= maxCellX; cx++) {
+                for (int cz = minCellZ; cz <= maxCellZ; cz++) {
+                    Long key = MapUtil.getChunkKey(cx, cz);
+                    List<MaplandsDisplay> cellDisplays = cells.get(key);
+                    if (cellDisplays == null) {
+                        cellDisplays = new ArrayList<MaplandsDisplay>(1);
+                        cells.put(key, cellDisplays);
+                    }
+                    cellDisplays.add(display);
+                }
+            }
+        }
+    }
+}
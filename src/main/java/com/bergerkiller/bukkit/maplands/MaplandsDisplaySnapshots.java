@@ -0,0 +1,187 @@
+package com.bergerkiller.bukkit.maplands;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+
+import org.bukkit.World;
+
+import com.bergerkiller.bukkit.common.bases.IntVector2;
+import com.bergerkiller.bukkit.common.utils.MathUtil;
+import com.bergerkiller.bukkit.maplands.anvil.AnvilChunk;
+import com.bergerkiller.bukkit.maplands.anvil.RegionFileReader;
+
+/**
+ * Stores immutable chunk snapshots of the area rendered by a map, so that
+ * rendering can happen on a worker thread. Snapshots are captured on the
+ * main thread, for chunks the renderer reported missing.<br>
+ * <br>
+ * When reading region files is enabled, chunks that are not loaded are read
+ * from the region files of the world on a worker thread instead, so they do
+ * not have to be loaded on the server. If that fails, or the chunk changes
+ * while the map is rendered, the chunk is loaded and captured as usual.
+ */
+public class MaplandsDisplaySnapshots {
+    private final Map<IntVector2, ChunkBlocks> snapshots = new ConcurrentHashMap<IntVector2, ChunkBlocks>();
+    private final Set<IntVector2> missing = ConcurrentHashMap.newKeySet();
+    /** Chunks being read from the region files right now */
+    private final Set<IntVector2> reading = ConcurrentHashMap.newKeySet();
+    /** Chunks that are not read from the region files, but loaded and captured */
+    private final Set<IntVector2> captureLoaded = ConcurrentHashMap.newKeySet();
+    /** Incremented when cleared, so that reads started before are discarded */
+    private volatile int generation = 0;
+    private volatile int minHeight = 0;
+    private volatile int height = 256;
+
+    /**
+     * Gets the minimum block y-coordinate of the world the snapshots are of
+     *
+     * @return minimum height
+     */
+    public int getMinHeight() {
+        return this.minHeight;
+    }
+
+    /**
+     * Gets the number of block layers of the world the snapshots are of,
+     * from the minimum height up to the maximum height
+     *
+     * @return height
+     */
+    public int getHeight() {
+        return this.height;
+    }
+
+    /**
+     * Gets the snapshot of a chunk. If the chunk has not been captured yet,
+     * it is registered as missing and null is returned. Can be called from
+     * any thread.
+     *
+     * @param cx Chunk x-coordinate
+     * @param cz Chunk z-coordinate
+     * @return chunk blocks, or null if the chunk was not captured yet
+     */
+    public ChunkBlocks getChunk(int cx, int cz) {
+        IntVector2 coord = new IntVector2(cx, cz);
+        ChunkBlocks snapshot = this.snapshots.get(coord);
+        if (snapshot == null) {
+            this.missing.add(coord);
+        }
+        return snapshot;
+    }
+
+    /**
+     * Captures snapshots of all chunks the renderer reported missing.
+     * Chunks that are not loaded yet are loaded asynchronously, and are
+     * captured during a later call. Only a limited number of chunks are
+     * captured every tick, shared by all displays. The others are captured
+     * during a later call. Must be called on the main thread.
+     *
+     * @param world World to capture chunks of
+     * @param chunks Chunk loader of the display
+     * @return True if no more chunks are missing
+     */
+    public boolean captureMissing(World world, MaplandsDisplayChunks chunks) {
+        int minHeight = world.getMinHeight();
+        int height = world.getMaxHeight() - world.getMinHeight();
+        this.minHeight = minHeight;
+        this.height = height;
+
+        ForkJoinPool regionReadPool = Maplands.isReadingRegionFiles() ? Maplands.plugin.getRenderPool() : null;
+        MapRenderScheduler scheduler = Maplands.plugin.getRenderScheduler();
+        Iterator<IntVector2> iter = this.missing.iterator();
+        while (iter.hasNext()) {
+            IntVector2 coord = iter.next();
+            if (this.snapshots.containsKey(coord)) {
+                iter.remove(); // Read from the region files in the meantime
+            } else if (regionReadPool != null && !this.captureLoaded.contains(coord) && !world.isChunkLoaded(coord.x, coord.z)) {
+                if (this.reading.add(coord)) {
+                    readRegionChunk(regionReadPool, world, coord);
+                }
+            } else if (chunks.cacheChunk(world, coord.x, coord.z)) {
+                if (chunks.isChunkMissing(world, coord.x, coord.z)) {
+                    // Chunk does not exist and is not generated, show as void
+                    this.snapshots.put(coord, ChunkBlocks.ofSnapshot(world.getEmptyChunkSnapshot(coord.x, coord.z, false, false),
+                            minHeight, height));
+                } else if (!scheduler.claimChunkCapture()) {
+                    continue; // Too many chunks captured this tick, capture it during a later tick
+                } else {
+                    this.snapshots.put(coord, ChunkBlocks.ofSnapshot(world.getChunkAt(coord.x, coord.z).getChunkSnapshot(false, false, false),
+                            minHeight, height));
+                }
+                iter.remove();
+            }
+        }
+        return this.missing.isEmpty();
+    }
+
+    private void readRegionChunk(ForkJoinPool pool, World world, final IntVector2 coord) {
+        final File regionFolder = getRegionFolder(world);
+        final int minSectionY = world.getMinHeight() >> 4;
+        final int sectionCount = ((world.getMaxHeight() - world.getMinHeight()) + 15) >> 4;
+        final int startGeneration = this.generation;
+        pool.execute(() -> {
+            AnvilChunk chunk;
+            try {
+                chunk = RegionFileReader.readChunk(regionFolder, coord.x, coord.z, minSectionY, sectionCount);
+            } catch (Throwable t) {
+                chunk = null; // Corrupt, being written or unsupported. Load it instead.
+            }
+
+            if (startGeneration == this.generation) {
+                if (chunk == null) {
+                    this.captureLoaded.add(coord);
+                } else {
+                    // Discard it again when the chunk changed while it was put
+                    ChunkBlocks blocks = ChunkBlocks.ofAnvil(chunk);
+                    this.snapshots.put(coord, blocks);
+                    if (this.captureLoaded.contains(coord)) {
+                        this.snapshots.remove(coord, blocks);
+                    }
+                }
+            }
+            this.reading.remove(coord);
+        });
+    }
+
+    static File getRegionFolder(World world) {
+        File worldFolder = world.getWorldFolder();
+        switch (world.getEnvironment()) {
+        case NETHER:
+            return new File(worldFolder, "DIM-1" + File.separator + "region");
+        case THE_END:
+            return new File(worldFolder, "DIM1" + File.separator + "region");
+        default:
+            return new File(worldFolder, "region");
+        }
+    }
+
+    /**
+     * Discards the snapshot of the chunk that contains a block, because the
+     * block changed. The chunk is captured again when it is needed. Since the
+     * chunk is loaded, it is no longer read from the region files, which could
+     * still store the old blocks.
+     *
+     * @param x World block x-coordinate
+     * @param z World block z-coordinate
+     */
+    public void invalidateBlock(int x, int z) {
+        IntVector2 coord = new IntVector2(MathUtil.toChunk(x), MathUtil.toChunk(z));
+        this.captureLoaded.add(coord);
+        this.snapshots.remove(coord);
+    }
+
+    /**
+     * Discards all captured snapshots, freeing up the memory they use
+     */
+    public void clear() {
+        this.generation++;
+        this.snapshots.clear();
+        this.missing.clear();
+        this.reading.clear();
+        this.captureLoaded.clear();
+    }
+}
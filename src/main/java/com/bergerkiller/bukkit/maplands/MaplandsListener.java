@@ -1,6 +1,11 @@
 package com.bergerkiller.bukkit.maplands;
 
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
+
 import org.bukkit.World;
+import org.bukkit.block.Block;
 import org.bukkit.event.EventHandler;
 import org.bukkit.event.EventPriority;
 import org.bukkit.event.Listener;
@@ -8,39 +13,95 @@ import org.bukkit.event.block.BlockPhysicsEvent;
 import org.bukkit.event.block.BlockRedstoneEvent;
 import org.bukkit.event.player.PlayerInteractEvent;
 
+import com.bergerkiller.bukkit.maplands.util.BlockPositionSet;
+
+/**
+ * Collects the blocks that change during a tick, and sends them to the
+ * displays that could show them once per tick using {@link #dispatchBlockChanges()}.
+ * Blocks that change many times during the same tick are only sent once.
+ */
 public class MaplandsListener implements Listener {
+    /** Blocks of which physics occurred, the block and its 6 neighbours are refreshed */
+    private final Map<World, BlockPositionSet> physicsBlocks = new IdentityHashMap<World, BlockPositionSet>();
+    /** Blocks that are refreshed */
+    private final Map<World, BlockPositionSet> changedBlocks = new IdentityHashMap<World, BlockPositionSet>();
 
     @EventHandler(priority = EventPriority.MONITOR)
     public void onBlockPhysics(BlockPhysicsEvent event) {
-        World world = event.getBlock().getWorld();
-        int bx = event.getBlock().getX();
-        int by = event.getBlock().getY();
-        int bz = event.getBlock().getZ();
-        for (MaplandsDisplay display : MaplandsDisplay.getAllDisplays()) {
-            if (display.isRenderingWorld(world)) {
-                display.onBlockChange(world, bx+1, by, bz);
-                display.onBlockChange(world, bx, by+1, bz);
-                display.onBlockChange(world, bx, by, bz+1);
-                display.onBlockChange(world, bx-1, by, bz);
-                display.onBlockChange(world, bx, by-1, bz);
-                display.onBlockChange(world, bx, by, bz-1);
-                display.onBlockChange(world, bx, by, bz);
-            }
-        }
+        Block block = event.getBlock();
+        getBlocks(this.physicsBlocks, block.getWorld()).add(block.getX(), block.getY(), block.getZ());
     }
 
     @EventHandler(priority = EventPriority.MONITOR)
     public void onBlockRedstone(BlockRedstoneEvent event) {
-        for (MaplandsDisplay display : MaplandsDisplay.getAllDisplays()) {
-            display.onBlockChange(event.getBlock());
-        }
+        Block block = event.getBlock();
+        getBlocks(this.changedBlocks, block.getWorld()).add(block.getX(), block.getY(), block.getZ());
     }
 
     @EventHandler(priority = EventPriority.MONITOR)
     public void onBlockInteracted(PlayerInteractEvent event) {
-        if (event.getClickedBlock() != null) {
-            for (MaplandsDisplay display : MaplandsDisplay.getAllDisplays()) {
-                display.onBlockChange(event.getClickedBlock());
+        Block block = event.getClickedBlock();
+        if (block != null) {
+            getBlocks(this.changedBlocks, block.getWorld()).add(block.getX(), block.getY(), block.getZ());
+        }
+    }
+
+    /**
+     * Sends all the blocks that changed since the previous call to the displays
+     * that could show them. Must be called once every tick.
+     */
+    public void dispatchBlockChanges() {
+        // Refresh the neighbours of blocks of which physics occurred
+        for (Map.Entry<World, BlockPositionSet> entry : this.physicsBlocks.entrySet()) {
+            final BlockPositionSet changed = getBlocks(this.changedBlocks, entry.getKey());
+            entry.getValue().forEach(position -> {
+                int bx = BlockPositionSet.unpackX(position);
+                int by = BlockPositionSet.unpackY(position);
+                int bz = BlockPositionSet.unpackZ(position);
+                changed.add(bx+1, by, bz);
+                changed.add(bx, by+1, bz);
+                changed.add(bx, by, bz+1);
+                changed.add(bx-1, by, bz);
+                changed.add(bx, by-1, bz);
+                changed.add(bx, by, bz-1);
+                changed.add(bx, by, bz);
+            });
+        }
+        clearBlocks(this.physicsBlocks);
+
+        for (Map.Entry<World, BlockPositionSet> entry : this.changedBlocks.entrySet()) {
+            final World world = entry.getKey();
+            entry.getValue().forEach(position -> {
+                int bx = BlockPositionSet.unpackX(position);
+                int by = BlockPositionSet.unpackY(position);
+                int bz = BlockPositionSet.unpackZ(position);
+                for (MaplandsDisplay display : MaplandsDisplay.getDisplaysNear(world, bx, bz)) {
+                    display.onBlockChange(world, bx, by, bz);
+                }
+            });
+        }
+        clearBlocks(this.changedBlocks);
+    }
+
+    private static BlockPositionSet getBlocks(Map<World, BlockPositionSet> blocks, World world) {
+        BlockPositionSet set = blocks.get(world);
+        if (set == null) {
+            set = new BlockPositionSet();
+            blocks.put(world, set);
+        }
+        return set;
+    }
+
+    // Keeps the sets of worlds that had changes so they are re-used next tick
+    // Worlds without changes are removed, so that unloaded worlds are not kept around
+    private static void clearBlocks(Map<World, BlockPositionSet> blocks) {
+        Iterator<BlockPositionSet> iter = blocks.values().iterator();
+        while (iter.hasNext()) {
+            BlockPositionSet set = iter.next();
+            if (set.isEmpty()) {
+                iter.remove();
+            } else {
+                set.clear();
             }
         }
     }
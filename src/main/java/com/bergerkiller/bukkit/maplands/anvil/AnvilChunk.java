@@ -0,0 +1,273 @@
+package com.bergerkiller.bukkit.maplands.anvil;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The block states of a single chunk, decoded from the NBT data stored in a region
+ * file. Block states are stored the same way Minecraft does, as a palette of block
+ * state strings per 16x16x16 section, and indices into that palette packed into longs.<br>
+ * <br>
+ * Supports chunks saved by Minecraft 1.16 and later. Immutable, so it can be
+ * used from any thread.
+ */
+public final class AnvilChunk {
+    /** Data version of Minecraft 1.16, since which palette indices don't span two longs */
+    public static final int MIN_DATA_VERSION = 2566;
+    private static final String AIR = "minecraft:air";
+    private final int x, z;
+    private final int minSectionY;
+    private final String[][] palettes;
+    private final long[][] data;
+    private final int[] bits;
+
+    private AnvilChunk(int x, int z, int minSectionY, int sectionCount) {
+        this.x = x;
+        this.z = z;
+        this.minSectionY = minSectionY;
+        this.palettes = new String[sectionCount][];
+        this.data = new long[sectionCount][];
+        this.bits = new int[sectionCount];
+    }
+
+    /**
+     * Gets the chunk x-coordinate
+     *
+     * @return chunk x
+     */
+    public int getX() {
+        return this.x;
+    }
+
+    /**
+     * Gets the chunk z-coordinate
+     *
+     * @return chunk z
+     */
+    public int getZ() {
+        return this.z;
+    }
+
+    /**
+     * Gets the number of sections of this chunk, from the bottom to the top of the world
+     *
+     * @return section count
+     */
+    public int getSectionCount() {
+        return this.palettes.length;
+    }
+
+    /**
+     * Gets the index of the section that contains a block y-coordinate
+     *
+     * @param y Block y-coordinate
+     * @return section index, -1 if outside the height of the world
+     */
+    public int getSectionIndex(int y) {
+        int index = (y >> 4) - this.minSectionY;
+        return (index >= 0 && index < this.palettes.length) ? index : -1;
+    }
+
+    /**
+     * Gets whether a section only contains air
+     *
+     * @param sectionIndex Section index, see {@link #getSectionIndex(int)}
+     * @return True if the section is empty
+     */
+    public boolean isSectionEmpty(int sectionIndex) {
+        return this.palettes[sectionIndex] == null;
+    }
+
+    /**
+     * Gets the palette of block states of a section
+     *
+     * @param sectionIndex Section index, see {@link #getSectionIndex(int)}
+     * @return palette, null if the section is empty
+     */
+    public String[] getPalette(int sectionIndex) {
+        return this.palettes[sectionIndex];
+    }
+
+    /**
+     * Gets the index into the palette of a section of a block
+     *
+     * @param sectionIndex Section index, see {@link #getSectionIndex(int)}
+     * @param x Block x-coordinate, only the lower 4 bits are used
+     * @param y Block y-coordinate, only the lower 4 bits are used
+     * @param z Block z-coordinate, only the lower 4 bits are used
+     * @return palette index
+     */
+    public int getPaletteIndex(int sectionIndex, int x, int y, int z) {
+        long[] sectionData = this.data[sectionIndex];
+        if (sectionData == null) {
+            return 0;
+        }
+        int sectionBits = this.bits[sectionIndex];
+        int valuesPerLong = 64 / sectionBits;
+        int i = ((y & 0xF) << 8) | ((z & 0xF) << 4) | (x & 0xF);
+        int longIndex = i / valuesPerLong;
+        if (longIndex >= sectionData.length) {
+            return 0;
+        }
+        int shift = (i - longIndex * valuesPerLong) * sectionBits;
+        return (int) ((sectionData[longIndex] >>> shift) & ((1L << sectionBits) - 1));
+    }
+
+    /**
+     * Gets the block state of a block, in the same format as used by commands.
+     * For example: <i>minecraft:oak_stairs[facing=north,half=bottom]</i>
+     *
+     * @param x Block x-coordinate, only the lower 4 bits are used
+     * @param y Block y-coordinate
+     * @param z Block z-coordinate, only the lower 4 bits are used
+     * @return block state
+     */
+    public String getBlockState(int x, int y, int z) {
+        int sectionIndex = getSectionIndex(y);
+        if (sectionIndex == -1 || this.palettes[sectionIndex] == null) {
+            return AIR;
+        }
+        String[] palette = this.palettes[sectionIndex];
+        int index = getPaletteIndex(sectionIndex, x, y, z);
+        return (index < palette.length) ? palette[index] : AIR;
+    }
+
+    /**
+     * Decodes the block states of a chunk from its NBT data
+     *
+     * @param x Chunk x-coordinate
+     * @param z Chunk z-coordinate
+     * @param root Root compound of the chunk NBT data
+     * @param minSectionY Section y-coordinate of the lowest section of the world
+     * @param sectionCount Number of sections of the world
+     * @return decoded chunk, or null if the chunk is not fully generated yet
+     * @throws IOException If the chunk data is not in a supported format
+     */
+    public static AnvilChunk decode(int x, int z, Map<String, Object> root, int minSectionY, int sectionCount) throws IOException {
+        int dataVersion = getInt(root, "DataVersion", 0);
+        if (dataVersion < MIN_DATA_VERSION) {
+            throw new IOException("Chunk data version " + dataVersion + " is not supported");
+        }
+
+        if (!isFullyGenerated(root)) {
+            return null;
+        }
+
+        // Since Minecraft 1.18 the chunk data is no longer inside a Level compound
+        boolean legacy = root.containsKey("Level");
+        Map<String, Object> level = legacy ? getCompound(root, "Level") : root;
+
+        AnvilChunk chunk = new AnvilChunk(x, z, minSectionY, sectionCount);
+        for (Object sectionObj : getList(level, legacy ? "Sections" : "sections")) {
+            if (!(sectionObj instanceof Map)) {
+                continue;
+            }
+            @SuppressWarnings("unchecked")
+            Map<String, Object> section = (Map<String, Object>) sectionObj;
+            int sectionIndex = getInt(section, "Y", Integer.MIN_VALUE) - minSectionY;
+            if (sectionIndex < 0 || sectionIndex >= sectionCount) {
+                continue;
+            }
+
+            List<Object> palette;
+            long[] data;
+            if (legacy) {
+                palette = getList(section, "Palette");
+                data = (section.get("BlockStates") instanceof long[]) ? (long[]) section.get("BlockStates") : null;
+            } else {
+                Map<String, Object> blockStates = getCompound(section, "block_states");
+                palette = getList(blockStates, "palette");
+                data = (blockStates.get("data") instanceof long[]) ? (long[]) blockStates.get("data") : null;
+            }
+            if (palette.isEmpty()) {
+                continue;
+            }
+
+            String[] states = new String[palette.size()];
+            for (int i = 0; i < states.length; i++) {
+                states[i] = toBlockState(palette.get(i));
+            }
+            if (states.length == 1 && isAir(states[0])) {
+                continue; // Empty
+            }
+
+            chunk.palettes[sectionIndex] = states;
+            if (states.length > 1 && data != null) {
+                chunk.data[sectionIndex] = data;
+                chunk.bits[sectionIndex] = Math.max(4, 32 - Integer.numberOfLeadingZeros(states.length - 1));
+            }
+        }
+        return chunk;
+    }
+
+    /**
+     * Gets whether a chunk is fully generated, or only partially generated while
+     * generating the chunks around it. Chunks saved by versions of Minecraft before
+     * 1.16 are assumed to be fully generated.
+     *
+     * @param root Root compound of the chunk NBT data
+     * @return True if fully generated
+     */
+    public static boolean isFullyGenerated(Map<String, Object> root) {
+        if (getInt(root, "DataVersion", 0) < MIN_DATA_VERSION) {
+            return true;
+        }
+        Map<String, Object> level = root.containsKey("Level") ? getCompound(root, "Level") : root;
+        String status = getString(level, "Status", "");
+        return status.equals("full") || status.equals("minecraft:full");
+    }
+
+    private static boolean isAir(String state) {
+        return state.equals(AIR) || state.equals("minecraft:cave_air") || state.equals("minecraft:void_air");
+    }
+
+    private static String toBlockState(Object entryObj) throws IOException {
+        if (!(entryObj instanceof Map)) {
+            throw new IOException("Invalid palette entry");
+        }
+        @SuppressWarnings("unchecked")
+        Map<String, Object> entry = (Map<String, Object>) entryObj;
+        String name = getString(entry, "Name", AIR);
+        Map<String, Object> properties = getCompound(entry, "Properties");
+        if (properties.isEmpty()) {
+            return name;
+        }
+
+        // Sort the properties, so that the same state always produces the same string
+        StringBuilder str = new StringBuilder(name).append('[');
+        boolean first = true;
+        for (Map.Entry<String, Object> property : new TreeMap<String, Object>(properties).entrySet()) {
+            if (!first) {
+                str.append(',');
+            }
+            first = false;
+            str.append(property.getKey()).append('=').append(property.getValue());
+        }
+        return str.append(']').toString();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> getCompound(Map<String, Object> compound, String name) {
+        Object value = compound.get(name);
+        return (value instanceof Map) ? (Map<String, Object>) value : Collections.<String, Object>emptyMap();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<Object> getList(Map<String, Object> compound, String name) {
+        Object value = compound.get(name);
+        return (value instanceof List) ? (List<Object>) value : Collections.emptyList();
+    }
+
+    private static int getInt(Map<String, Object> compound, String name, int def) {
+        Object value = compound.get(name);
+        return (value instanceof Number) ? ((Number) value).intValue() : def;
+    }
+
+    private static String getString(Map<String, Object> compound, String name, String def) {
+        Object value = compound.get(name);
+        return (value instanceof String) ? (String) value : def;
+    }
+}
@@ -0,0 +1,120 @@
+package com.bergerkiller.bukkit.maplands.anvil;
+
+import java.io.DataInput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads Named Binary Tag (NBT) data, the format Minecraft stores chunks in.
+ * Compounds are read as a Map, lists as a List, arrays as primitive arrays
+ * and all other tags as their boxed values. Only used to read chunks from the
+ * region files, so it does not depend on the server.
+ */
+public class NBTReader {
+    public static final byte TAG_END = 0;
+    public static final byte TAG_BYTE = 1;
+    public static final byte TAG_SHORT = 2;
+    public static final byte TAG_INT = 3;
+    public static final byte TAG_LONG = 4;
+    public static final byte TAG_FLOAT = 5;
+    public static final byte TAG_DOUBLE = 6;
+    public static final byte TAG_BYTE_ARRAY = 7;
+    public static final byte TAG_STRING = 8;
+    public static final byte TAG_LIST = 9;
+    public static final byte TAG_COMPOUND = 10;
+    public static final byte TAG_INT_ARRAY = 11;
+    public static final byte TAG_LONG_ARRAY = 12;
+    /** Limits nesting, so that corrupted data can not cause a stack overflow */
+    private static final int MAX_DEPTH = 512;
+
+    /**
+     * Reads the root compound tag of NBT data
+     *
+     * @param input Input to read from, must not be compressed
+     * @return root compound
+     * @throws IOException If reading fails, or the data is not a compound
+     */
+    public static Map<String, Object> readRoot(DataInput input) throws IOException {
+        byte type = input.readByte();
+        if (type != TAG_COMPOUND) {
+            throw new IOException("Root tag is not a compound: " + type);
+        }
+        input.readUTF(); // Name of the root tag, unused
+        return readCompound(input, 0);
+    }
+
+    private static Map<String, Object> readCompound(DataInput input, int depth) throws IOException {
+        Map<String, Object> compound = new HashMap<String, Object>();
+        byte type;
+        while ((type = input.readByte()) != TAG_END) {
+            String name = input.readUTF();
+            compound.put(name, readPayload(input, type, depth + 1));
+        }
+        return compound;
+    }
+
+    private static Object readPayload(DataInput input, byte type, int depth) throws IOException {
+        if (depth > MAX_DEPTH) {
+            throw new IOException("Tags are nested too deep");
+        }
+        switch (type) {
+        case TAG_BYTE:
+            return input.readByte();
+        case TAG_SHORT:
+            return input.readShort();
+        case TAG_INT:
+            return input.readInt();
+        case TAG_LONG:
+            return input.readLong();
+        case TAG_FLOAT:
+            return input.readFloat();
+        case TAG_DOUBLE:
+            return input.readDouble();
+        case TAG_BYTE_ARRAY: {
+            byte[] data = new byte[readLength(input)];
+            input.readFully(data);
+            return data;
+        }
+        case TAG_STRING:
+            return input.readUTF();
+        case TAG_LIST: {
+            byte elementType = input.readByte();
+            int length = readLength(input);
+            List<Object> list = new ArrayList<Object>(Math.min(length, 1024));
+            for (int i = 0; i < length; i++) {
+                list.add(readPayload(input, elementType, depth + 1));
+            }
+            return list;
+        }
+        case TAG_COMPOUND:
+            return readCompound(input, depth);
+        case TAG_INT_ARRAY: {
+            int[] data = new int[readLength(input)];
+            for (int i = 0; i < data.length; i++) {
+                data[i] = input.readInt();
+            }
+            return data;
+        }
+        case TAG_LONG_ARRAY: {
+            long[] data = new long[readLength(input)];
+            for (int i = 0; i < data.length; i++) {
+                data[i] = input.readLong();
+            }
+            return data;
+        }
+        default:
+            throw new IOException("Invalid tag type: " + type);
+        }
+    }
+
+    private static int readLength(DataInput input) throws IOException {
+        int length = input.readInt();
+        if (length < 0) {
+            throw new IOException("Negative length: " + length);
+        }
+        return length;
+    }
+}
@@ -0,0 +1,159 @@
+package com.bergerkiller.bukkit.maplands.anvil;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Reads chunks straight from the region (.mca) files of a world, without
+ * loading them on the server. Every region file stores 32x32 chunks, with a
+ * table of 1024 sector offsets at the start of the file. Each chunk is stored
+ * as compressed NBT data, starting at its offset.<br>
+ * <br>
+ * The region file is opened read-only, and no locks are held afterwards, so
+ * this can be used from any thread while the server is running. Chunks the
+ * server is writing at the same time can be read incorrectly, in which case
+ * an exception is thrown.
+ */
+public class RegionFileReader {
+    private static final int SECTOR_SIZE = 4096;
+    private static final int COMPRESSION_GZIP = 1;
+    private static final int COMPRESSION_ZLIB = 2;
+    private static final int COMPRESSION_NONE = 3;
+    /** Chunk data is stored in a separate .mcc file when this flag is set */
+    private static final int COMPRESSION_EXTERNAL = 128;
+    /** Limits the size of a single chunk, so that corrupted data can not use up all memory */
+    private static final int MAX_CHUNK_SIZE = 256 * SECTOR_SIZE;
+
+    /**
+     * Gets the region file that stores a chunk
+     *
+     * @param regionFolder Region folder of the world
+     * @param cx Chunk x-coordinate
+     * @param cz Chunk z-coordinate
+     * @return region file
+     */
+    public static File getRegionFile(File regionFolder, int cx, int cz) {
+        return new File(regionFolder, "r." + (cx >> 5) + "." + (cz >> 5) + ".mca");
+    }
+
+    /**
+     * Reads the block states of a chunk from the region files
+     *
+     * @param regionFolder Region folder of the world
+     * @param cx Chunk x-coordinate
+     * @param cz Chunk z-coordinate
+     * @param minSectionY Section y-coordinate of the lowest section of the world
+     * @param sectionCount Number of sections of the world
+     * @return chunk, or null if the chunk was not saved, or is not fully generated yet
+     * @throws IOException If reading fails, or the chunk is stored in a format that is not supported
+     */
+    public static AnvilChunk readChunk(File regionFolder, int cx, int cz, int minSectionY, int sectionCount) throws IOException {
+        Map<String, Object> root = readChunkRoot(regionFolder, cx, cz);
+        return (root == null) ? null : AnvilChunk.decode(cx, cz, root, minSectionY, sectionCount);
+    }
+
+    /**
+     * Checks whether a chunk is stored in the region files, and is fully generated.
+     * Chunks that are only partially generated, while generating the chunks around
+     * them, are not.
+     *
+     * @param regionFolder Region folder of the world
+     * @param cx Chunk x-coordinate
+     * @param cz Chunk z-coordinate
+     * @return True if the chunk is stored and fully generated
+     * @throws IOException If reading fails
+     */
+    public static boolean isChunkGenerated(File regionFolder, int cx, int cz) throws IOException {
+        Map<String, Object> root = readChunkRoot(regionFolder, cx, cz);
+        return root != null && AnvilChunk.isFullyGenerated(root);
+    }
+
+    /**
+     * Reads and decompresses the NBT data of a chunk stored in the region files
+     *
+     * @param regionFolder Region folder of the world
+     * @param cx Chunk x-coordinate
+     * @param cz Chunk z-coordinate
+     * @return root compound of the chunk, or null if the chunk was not saved
+     * @throws IOException If reading fails, or the chunk is stored in a format that is not supported
+     */
+    private static Map<String, Object> readChunkRoot(File regionFolder, int cx, int cz) throws IOException {
+        byte[] data = readChunkData(getRegionFile(regionFolder, cx, cz), cx, cz);
+        if (data == null) {
+            return null;
+        }
+
+        int compression = data[0] & 0xFF;
+        InputStream compressed = new ByteArrayInputStream(data, 1, data.length - 1);
+        InputStream decompressed;
+        switch (compression) {
+        case COMPRESSION_GZIP:
+            decompressed = new GZIPInputStream(compressed);
+            break;
+        case COMPRESSION_ZLIB:
+            decompressed = new InflaterInputStream(compressed);
+            break;
+        case COMPRESSION_NONE:
+            decompressed = compressed;
+            break;
+        default:
+            if ((compression & COMPRESSION_EXTERNAL) != 0) {
+                throw new IOException("Chunk [" + cx + ", " + cz + "] is stored in an external file");
+            }
+            throw new IOException("Chunk [" + cx + ", " + cz + "] uses unsupported compression " + compression);
+        }
+
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(decompressed))) {
+            return NBTReader.readRoot(input);
+        }
+    }
+
+    /**
+     * Reads the raw data of a chunk stored in a region file. The first byte
+     * is the compression type, followed by the compressed NBT data.
+     *
+     * @param regionFile Region file
+     * @param cx Chunk x-coordinate
+     * @param cz Chunk z-coordinate
+     * @return chunk data, or null if the chunk is not stored in the region file
+     * @throws IOException If reading fails
+     */
+    private static byte[] readChunkData(File regionFile, int cx, int cz) throws IOException {
+        if (!regionFile.isFile()) {
+            return null;
+        }
+        try (RandomAccessFile file = new RandomAccessFile(regionFile, "r")) {
+            if (file.length() < 2 * SECTOR_SIZE) {
+                return null; // No header, nothing saved yet
+            }
+
+            file.seek(4 * ((cx & 31) + (cz & 31) * 32));
+            int location = file.readInt();
+            long offset = (long) (location >>> 8) * SECTOR_SIZE;
+            int sectors = location & 0xFF;
+            if (location == 0 || offset < 2 * SECTOR_SIZE || (offset + 5) > file.length()) {
+                return null;
+            }
+
+            file.seek(offset);
+            int length = file.readInt();
+            if (length <= 0 || length > MAX_CHUNK_SIZE || length > sectors * SECTOR_SIZE
+                    || (offset + 4 + length) > file.length())
+            {
+                throw new IOException("Chunk [" + cx + ", " + cz + "] has an invalid length " + length);
+            }
+
+            byte[] data = new byte[length];
+            file.readFully(data);
+            return data;
+        }
+    }
+}
@@ -0,0 +1,183 @@
+package com.bergerkiller.bukkit.maplands.util;
+
+import java.util.Arrays;
+import java.util.function.LongConsumer;
+
+/**
+ * Stores a set of block coordinates without creating an object per block.
+ * The x/y/z coordinates are packed into a single long, and the longs are stored
+ * in an open-addressing hash table. Clearing the set keeps the table, so that
+ * a set reused every tick does not allocate once it has grown large enough.<br>
+ * <br>
+ * The x and z coordinates are stored in 26 bits, and the y coordinate in 12 bits.
+ */
+public class BlockPositionSet {
+    private static final int MIN_CAPACITY = 16;
+    private long[] _table;
+    private int _size;
+    private boolean _containsZero;
+
+    public BlockPositionSet() {
+        this._table = new long[MIN_CAPACITY];
+        this._size = 0;
+        this._containsZero = false;
+    }
+
+    /**
+     * Gets the number of block positions stored in this set
+     *
+     * @return size
+     */
+    public int size() {
+        return this._size;
+    }
+
+    public boolean isEmpty() {
+        return this._size == 0;
+    }
+
+    /**
+     * Removes all the block positions from this set
+     */
+    public void clear() {
+        if (this._size > 0) {
+            Arrays.fill(this._table, 0L);
+            this._size = 0;
+            this._containsZero = false;
+        }
+    }
+
+    /**
+     * Adds a block position to this set
+     *
+     * @param x Block x-coordinate
+     * @param y Block y-coordinate
+     * @param z Block z-coordinate
+     * @return True if added, False if the set already contained the block position
+     */
+    public boolean add(int x, int y, int z) {
+        return add(pack(x, y, z));
+    }
+
+    /**
+     * Adds a packed block position to this set
+     *
+     * @param position Block position, see {@link #pack(int, int, int)}
+     * @return True if added, False if the set already contained the block position
+     */
+    public boolean add(long position) {
+        if (position == 0L) {
+            if (this._containsZero) {
+                return false;
+            }
+            this._containsZero = true;
+            this._size++;
+            return true;
+        }
+
+        // Keep the table at most half full
+        if ((this._size + 1) * 2 > this._table.length) {
+            this.resize(this._table.length * 2);
+        }
+        if (!insert(this._table, position)) {
+            return false;
+        }
+        this._size++;
+        return true;
+    }
+
+    /**
+     * Checks whether a block position is stored in this set
+     *
+     * @param x Block x-coordinate
+     * @param y Block y-coordinate
+     * @param z Block z-coordinate
+     * @return True if contained
+     */
+    public boolean contains(int x, int y, int z) {
+        long position = pack(x, y, z);
+        if (position == 0L) {
+            return this._containsZero;
+        }
+        long[] table = this._table;
+        int mask = table.length - 1;
+        for (int i = hash(position) & mask;; i = (i + 1) & mask) {
+            long value = table[i];
+            if (value == position) {
+                return true;
+            } else if (value == 0L) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Calls an action for every packed block position stored in this set.
+     * Use {@link #unpackX(long)}, {@link #unpackY(long)} and {@link #unpackZ(long)}
+     * to read the coordinates. The set must not be modified by the action.
+     *
+     * @param action Action to call
+     */
+    public void forEach(LongConsumer action) {
+        if (this._containsZero) {
+            action.accept(0L);
+        }
+        for (long value : this._table) {
+            if (value != 0L) {
+                action.accept(value);
+            }
+        }
+    }
+
+    private void resize(int capacity) {
+        long[] newTable = new long[capacity];
+        for (long value : this._table) {
+            if (value != 0L) {
+                insert(newTable, value);
+            }
+        }
+        this._table = newTable;
+    }
+
+    private static boolean insert(long[] table, long position) {
+        int mask = table.length - 1;
+        for (int i = hash(position) & mask;; i = (i + 1) & mask) {
+            long value = table[i];
+            if (value == position) {
+                return false;
+            } else if (value == 0L) {
+                table[i] = position;
+                return true;
+            }
+        }
+    }
+
+    private static int hash(long position) {
+        long h = position * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    /**
+     * Packs block coordinates into a single long value
+     *
+     * @param x Block x-coordinate
+     * @param y Block y-coordinate
+     * @param z Block z-coordinate
+     * @return packed block position
+     */
+    public static long pack(int x, int y, int z) {
+        return (((long) x & 0x3FFFFFFL) << 38) | (((long) z & 0x3FFFFFFL) << 12) | ((long) y & 0xFFFL);
+    }
+
+    public static int unpackX(long position) {
+        return (int) (position >> 38);
+    }
+
+    public static int unpackY(long position) {
+        return (int) (position << 52 >> 52);
+    }
+
+    public static int unpackZ(long position) {
+        return (int) (position << 26 >> 38);
+    }
+}
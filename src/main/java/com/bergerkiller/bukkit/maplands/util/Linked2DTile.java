@@ -6,19 +6,46 @@ import com.bergerkiller.bukkit.common.bases.IntVector3;
 import com.bergerkiller.bukkit.maplands.MapUtil;
 
 /**
- * A single tile of a {@link Linked2DTileSet}
- * which has references to the previous and next element
- * for iteration and insertion purposes.
+ * A single tile of a {@link Linked2DTileSet}. When created using
+ * {@link Linked2DTileList#cursor()}, this tile is a cursor that
+ * moves over all the tiles of the list using {@link #next()}. The
+ * x/y coordinates are updated every time the cursor moves.<br>
+ * <br>
+ * The world coordinates of the block shown by the tile can be computed
+ * into {@link #blockX}/{@link #blockY}/{@link #blockZ} using
+ * {@link #moveToBlock(BlockFace, int, int, int, int)}, and moved further
+ * away from the viewer using {@link #stepBlock(IntVector3, int)}. This
+ * does not create any new objects.
  */
 public final class Linked2DTile {
-    public final int x;
-    public final int y;
-    private final int depthModThree;
-    private final int toBlock_pxy;
-    public Linked2DTile prev = null;
-    public Linked2DTile next = null;
+    public int x;
+    public int y;
+    public int blockX;
+    public int blockY;
+    public int blockZ;
+    private int depthModThree;
+    private int toBlock_pxy;
+    private final Linked2DTileSet set;
+    private final Linked2DTileList list;
+    private int index;
 
     public Linked2DTile(int x, int y) {
+        this.set = null;
+        this.list = null;
+        this.index = -1;
+        this.moveTo(x, y);
+    }
+
+    Linked2DTile(Linked2DTileSet set, Linked2DTileList list) {
+        this.set = set;
+        this.list = list;
+        this.index = -1;
+        this.x = Integer.MIN_VALUE;
+        this.y = Integer.MIN_VALUE;
+        this.depthModThree = -1;
+    }
+
+    private void moveTo(int x, int y) {
         this.x = x;
         this.y = y;
         this.toBlock_pxy = MapUtil.getTilePXY(x, y) + 1;
@@ -28,8 +55,45 @@ public final class Linked2DTile {
         this.depthModThree = MapUtil.getTileDepthModThree(x, y);
     }
 
-    public boolean isSet() {
-        return this.next != null;
+    /**
+     * Moves this cursor to the next tile of the list it iterates
+     *
+     * @return True if moved to the next tile, False if the end of the list was reached
+     */
+    public boolean next() {
+        int nextIndex = this.list.bits.nextSetBit(this.index + 1);
+        if (nextIndex < 0) {
+            this.index = Integer.MAX_VALUE - 1;
+            return false;
+        }
+
+        this.index = nextIndex;
+        this.moveTo(this.set.getX(nextIndex), this.set.getY(nextIndex));
+        return true;
+    }
+
+    /**
+     * Positions this cursor at a tile index, without moving to it. The next call
+     * to {@link #next()} moves to the first tile of the list after this index.
+     * Used to continue iterating where a previous cursor stopped.
+     *
+     * @param index Tile index to continue after
+     */
+    public void skipTo(int index) {
+        if (this.list == null) {
+            throw new IllegalStateException("Tile is not a cursor");
+        }
+        this.index = index;
+    }
+
+    /**
+     * Gets the index of this tile in the set. Tiles are indexed
+     * row by row, starting at the minimum x/y coordinates of the set.
+     *
+     * @return tile index, -1 if this tile is not part of a set
+     */
+    public int getIndex() {
+        return this.index;
     }
 
     /**
@@ -81,34 +145,72 @@ public final class Linked2DTile {
     }
 
     /**
-     * Removes this tile in the linked list. The previous
-     * tile of this tile will link up with the next tile of this
-     * tile, and vice-versa. Future iteration will exclude
-     * this tile.
+     * Computes the world block coordinates of the block drawn at this tile
+     * for a given depth level, and stores them in {@link #blockX},
+     * {@link #blockY} and {@link #blockZ}. Before calling, make sure to check
+     * the depth is correct using {@link #getDepthModThree()}.
      *
-     * @return The previous tile
+     * @param facing View facing
+     * @param depth Depth z-coordinate
+     * @param startX Start block x-coordinate of the view
+     * @param startY Start block y-coordinate of the view
+     * @param startZ Start block z-coordinate of the view
+     * @see #toBlock(BlockFace, int)
      */
-    public Linked2DTile remove() {
-        Linked2DTile prev = this.prev;
+    public void moveToBlock(BlockFace facing, int depth, int startX, int startY, int startZ) {
+        int py_div3 = Math.floorDiv(this.y, 3);
+        int pz_div3 = Math.floorDiv(depth, 3);
 
-        this.prev.next = this.next;
-        this.next.prev = this.prev;
-        this.prev = null;
-        this.next = null;
+        int dx = pz_div3 + this.toBlock_pxy;
+        int dy = -py_div3 - pz_div3;
+        int dz = dx - dy - depth;
 
-        return prev;
+        this.blockY = startY + dy;
+        switch (facing) {
+        case NORTH_EAST:
+            this.blockX = startX + dx;
+            this.blockZ = startZ + dz;
+            break;
+        case SOUTH_WEST:
+            this.blockX = startX - dx;
+            this.blockZ = startZ - dz;
+            break;
+        case NORTH_WEST:
+            this.blockX = startX + dz;
+            this.blockZ = startZ - dx;
+            break;
+        case SOUTH_EAST:
+            this.blockX = startX - dz;
+            this.blockZ = startZ + dx;
+            break;
+        default:
+            throw new IllegalArgumentException("Unsupported facing: " + facing);
+        }
     }
 
     /**
-     * Links two tiles together so that {@link #next} of <i>a</i> refers
-     * to b, and {@link #prev} of <i>b</i> refers to a.
+     * Moves the block coordinates computed using {@link #moveToBlock(BlockFace, int, int, int, int)}
+     * a number of steps of 3 depth levels further away from the viewer
      *
-     * @param a First tile
-     * @param b Second tile
+     * @param depthStepDelta Block delta per 3 depth levels, see {@link MapUtil#getDepthStepDelta(BlockFace)}
+     * @param steps Number of steps to move
      */
-    public static void link(Linked2DTile a, Linked2DTile b) {
-        a.next = b;
-        b.prev = a;
+    public void stepBlock(IntVector3 depthStepDelta, int steps) {
+        this.blockX += steps * depthStepDelta.x;
+        this.blockY += steps * depthStepDelta.y;
+        this.blockZ += steps * depthStepDelta.z;
+    }
+
+    /**
+     * Removes the tile this cursor is at from the set. The cursor
+     * stays where it is, so the next call to {@link #next()} moves
+     * to the tile that came after this tile.
+     */
+    public void remove() {
+        if (this.list == null || this.index < 0) {
+            throw new IllegalStateException("Cursor is not at a tile");
+        }
+        this.list.bits.clear(this.index);
     }
 
     @Override
@@ -1,29 +1,36 @@
 package com.bergerkiller.bukkit.maplands.util;
 
+import java.util.BitSet;
+
 /**
- * A single linked list of tiles. There are three
- * depth levels per {@link Linked2DTileSet}, each represented
- * by a tile list.<br>
+ * A single list of tiles. There are three depth levels
+ * per {@link Linked2DTileSet}, each represented by a tile list.
+ * The tiles are stored as bits in a bitset, ordered by
+ * their index in the set.<br>
  * <br>
- * To iterate, the first element is the {@link Linked2DTile#next}
- * of {@link #head}, and once {@link #tail} is found, the end is
- * reached. The head and tail tiles are not actual tiles.
+ * To iterate, create a {@link #cursor()} and call {@link Linked2DTile#next()}
+ * until it returns false. The cursor is moved from tile to tile, no
+ * new objects are created while iterating.
  */
 public class Linked2DTileList {
-    public final Linked2DTile head;
-    public final Linked2DTile tail;
+    private final Linked2DTileSet set;
+    final BitSet bits;
 
-    public Linked2DTileList() {
-        this.head = new Linked2DTile(Integer.MIN_VALUE, Integer.MIN_VALUE);
-        this.tail = new Linked2DTile(Integer.MAX_VALUE, Integer.MAX_VALUE);
-        this.linkHeadToTail();
+    Linked2DTileList(Linked2DTileSet set) {
+        this.set = set;
+        this.bits = new BitSet();
     }
 
-    public void linkHeadToTail() {
-        Linked2DTile.link(this.head, this.tail);
+    /**
+     * Creates a new cursor positioned before the first tile of this list
+     *
+     * @return cursor
+     */
+    public Linked2DTile cursor() {
+        return new Linked2DTile(this.set, this);
     }
 
     public boolean isEmpty() {
-        return this.head.next == this.tail;
+        return this.bits.isEmpty();
     }
 }
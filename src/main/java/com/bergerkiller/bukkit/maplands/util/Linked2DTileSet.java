@@ -2,10 +2,13 @@ package com.bergerkiller.bukkit.maplands.util;
 
 import java.util.NoSuchElementException;
 
+import com.bergerkiller.bukkit.maplands.MapUtil;
+
 /**
  * Stores a 2D rectangular set of tiles that can efficiently
- * be iterated and modified by linking the available tiles
- * together.
+ * be iterated and modified. The tiles of each depth level are
+ * stored as bits in a bitset, so that setting and clearing a tile
+ * is a single bit operation, and iteration skips to the next set bit.
  */
 public class Linked2DTileSet {
     private final int _offX;
@@ -13,7 +16,6 @@ public class Linked2DTileSet {
     private final int _width;
     private final int _height;
     private final Linked2DTileList[] _depths;
-    private final Linked2DTile[] _tiles;
 
     /**
      * Default constructor for a 0x0 no-element set
@@ -24,7 +26,7 @@ public class Linked2DTileSet {
 
     /**
      * Creates a new Tile2DSet using the specified range
-     * of x/y values. Initially all tiles are set.
+     * of x/y values. Initially no tiles are set.
      * 
      * @param minX Minimum x-coordinate (inclusive)
      * @param maxX Maximum x-coordinate (inclusive)
@@ -36,23 +38,9 @@ public class Linked2DTileSet {
         this._offY = minY;
         this._width = maxX - minX + 1;
         this._height = maxY - minY + 1;
-        this._depths = new Linked2DTileList[] {new Linked2DTileList(),
-                                               new Linked2DTileList(),
-                                               new Linked2DTileList()};
-
-        // Create all tiles (that exist). Initially, do not store in the
-        // linked list, which makes it 'empty'.
-        this._tiles = new Linked2DTile[this._width * this._height];
-        int index = 0;
-        for (int y = 0; y < this._height; y++) {
-            for (int x = 0; x < this._width; x++) {
-                Linked2DTile tile = new Linked2DTile(this._offX + x, this._offY + y);
-                if (tile.getDepthModThree() != -1) {
-                    this._tiles[index] = tile;
-                }
-                index++;
-            }
-        }
+        this._depths = new Linked2DTileList[] {new Linked2DTileList(this),
+                                               new Linked2DTileList(this),
+                                               new Linked2DTileList(this)};
     }
 
     public int getMinX() {
@@ -87,45 +75,25 @@ public class Linked2DTileSet {
      * Fills this entire set, setting it to contain all tiles
      */
     public void setAll() {
-        // Start at the head of all three depth levels
-        Linked2DTile[] current = new Linked2DTile[] {
-                this._depths[0].head,
-                this._depths[1].head,
-                this._depths[2].head
-        };
-
-        // Go by all tiles and connect them together
-        // in the right depth-specific linked list.
-        for (Linked2DTile tile : this._tiles) {
-            if (tile != null) {
-                int depth = tile.getDepthModThree();
-                Linked2DTile.link(current[depth], tile);
-                current[depth] = tile;
+        int index = 0;
+        for (int y = 0; y < this._height; y++) {
+            for (int x = 0; x < this._width; x++) {
+                int depth = MapUtil.getTileDepthModThree(this._offX + x, this._offY + y);
+                if (depth != -1) {
+                    this._depths[depth].bits.set(index);
+                }
+                index++;
             }
         }
-
-        // Connect to tail
-        Linked2DTile.link(current[0], this._depths[0].tail);
-        Linked2DTile.link(current[1], this._depths[1].tail);
-        Linked2DTile.link(current[2], this._depths[2].tail);
     }
 
     /**
      * Clears this entire set, setting it to contain no tiles at all (empty)
      */
     public void clearAll() {
-        if (!isEmpty()) {
-            for (Linked2DTile tile : this._tiles) {
-                if (tile != null) {
-                    tile.prev = null;
-                    tile.next = null;
-                }
-            }
-
-            this._depths[0].linkHeadToTail();
-            this._depths[1].linkHeadToTail();
-            this._depths[2].linkHeadToTail();
-        }
+        this._depths[0].bits.clear();
+        this._depths[1].bits.clear();
+        this._depths[2].bits.clear();
     }
 
     /**
@@ -136,8 +104,9 @@ public class Linked2DTileSet {
      * @throws IllegalArgumentException If coordinate is out of range
      */
     public boolean contains(int x, int y) {
-        Linked2DTile tile = this._tiles[getIndex(x, y)];
-        return tile != null && tile.isSet();
+        int index = getIndex(x, y);
+        int depth = MapUtil.getTileDepthModThree(x, y);
+        return depth != -1 && this._depths[depth].bits.get(index);
     }
 
     /**
@@ -150,46 +119,11 @@ public class Linked2DTileSet {
      */
     public boolean set(int x, int y) {
         int index = getIndex(x, y);
-        Linked2DTile tile = this._tiles[index];
-        if (tile == null || tile.isSet()) {
-            return false; // Already set
-        }
-
-        // The linked list of this depth level stores the list
-        final int depth = tile.getDepthModThree();
-
-        // Try to find the nearest set tile from this tile
-        // back and forwards. As soon we hit something, the
-        // prev/next allows us to insert it.
-        Linked2DTile prev, next;
-        int prev_index = index;
-        int next_index = index;
-        int num_tiles = this._tiles.length;
-        while (true) {
-            if (--prev_index < 0) {
-                prev = this._depths[depth].head;
-                next = this._depths[depth].head.next;
-                break;
-            }
-            if (++next_index >= num_tiles) {
-                prev = this._depths[depth].tail.prev;
-                next = this._depths[depth].tail;
-                break;
-            }
-            prev = this._tiles[prev_index];
-            if (prev != null && prev.isSet() && prev.getDepthModThree() == depth) {
-                next = prev.next;
-                break;
-            }
-            next = this._tiles[next_index];
-            if (next != null && next.isSet() && next.getDepthModThree() == depth) {
-                prev = next.prev;
-                break;
-            }
+        int depth = MapUtil.getTileDepthModThree(x, y);
+        if (depth == -1 || this._depths[depth].bits.get(index)) {
+            return false; // Invalid or already set
         }
-
-        Linked2DTile.link(prev, tile);
-        Linked2DTile.link(tile, next);
+        this._depths[depth].bits.set(index);
         return true;
     }
 
@@ -203,17 +137,23 @@ public class Linked2DTileSet {
      */
     public boolean clear(int x, int y) {
         int index = getIndex(x, y);
-        Linked2DTile tile = this._tiles[index];
-        if (tile != null && tile.isSet()) {
-            Linked2DTile.link(tile.prev, tile.next);
-            tile.prev = null;
-            tile.next = null;
+        int depth = MapUtil.getTileDepthModThree(x, y);
+        if (depth != -1 && this._depths[depth].bits.get(index)) {
+            this._depths[depth].bits.clear(index);
             return true;
         } else {
             return false;
         }
     }
 
+    int getX(int index) {
+        return this._offX + (index % this._width);
+    }
+
+    int getY(int index) {
+        return this._offY + (index / this._width);
+    }
+
     private int getIndex(int x, int y) {
         x -= this._offX;
         y -= this._offY;
@@ -248,40 +188,38 @@ public class Linked2DTileSet {
      * Iterator for all the tiles NOT set
      */
     private static final class InverseIterator implements java.util.Iterator<Linked2DTile> {
-        private final Linked2DTile[] _tiles;
+        private final Linked2DTileSet _set;
+        private final int _count;
         private int _index;
 
         public InverseIterator(Linked2DTileSet set) {
-            this._tiles = set._tiles;
+            this._set = set;
+            this._count = set._width * set._height;
             this._index = 0;
         }
 
-        private Linked2DTile advance() {
-            if (this._index >= this._tiles.length) {
-                return null; // end of iteration
-            }
-
-            do {
-                Linked2DTile tile = this._tiles[this._index];
-                if (tile != null && !tile.isSet()) {
-                    return tile; // Found one!
+        private boolean advance() {
+            while (this._index < this._count) {
+                int depth = MapUtil.getTileDepthModThree(this._set.getX(this._index), this._set.getY(this._index));
+                if (depth != -1 && !this._set._depths[depth].bits.get(this._index)) {
+                    return true; // Found one!
                 }
-            } while (++this._index < this._tiles.length);
-
-            return null;
+                this._index++;
+            }
+            return false;
         }
 
         @Override
         public boolean hasNext() {
-            return advance() != null;
+            return advance();
         }
 
         @Override
         public Linked2DTile next() {
-            Linked2DTile result = advance();
-            if (result == null) {
+            if (!advance()) {
                 throw new NoSuchElementException();
             } else {
+                Linked2DTile result = new Linked2DTile(this._set.getX(this._index), this._set.getY(this._index));
                 this._index++;
                 return result;
             }
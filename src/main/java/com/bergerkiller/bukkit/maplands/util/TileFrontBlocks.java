@@ -0,0 +1,174 @@
+package com.bergerkiller.bukkit.maplands.util;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Stores for every tile of a display the depth and sprite id of the front-most
+ * fully opaque block drawn at that tile. Blocks behind this block can not be seen,
+ * so changes to them don't need to be drawn. The depth and sprite id are packed
+ * into a single long per tile, so that they are always read and written together.<br>
+ * <br>
+ * Tiles for which the front-most opaque block is not known have no record.
+ * Nothing is hidden for those tiles.
+ */
+public class TileFrontBlocks {
+    private static final long NONE = Long.MAX_VALUE;
+    private final int _offX;
+    private final int _offY;
+    private final int _width;
+    private final int _height;
+    private final long[] _records;
+    /** Tiles whose record changed since the records were last copied */
+    private final BitSet _changed = new BitSet();
+
+    /**
+     * Creates a new set of records using the specified range
+     * of x/y tile coordinates. Initially no tile has a record.
+     *
+     * @param minX Minimum x-coordinate (inclusive)
+     * @param maxX Maximum x-coordinate (inclusive)
+     * @param minY Minimum y-coordinate (inclusive)
+     * @param maxY Maximum y-coordinate (inclusive)
+     */
+    public TileFrontBlocks(int minX, int maxX, int minY, int maxY) {
+        this._offX = minX;
+        this._offY = minY;
+        this._width = maxX - minX + 1;
+        this._height = maxY - minY + 1;
+        this._records = new long[Math.max(0, this._width * this._height)];
+        Arrays.fill(this._records, NONE);
+    }
+
+    /**
+     * Replaces the records of all tiles with the records of those tiles in another set.
+     * Tiles outside the range of the other set get no record.
+     *
+     * @param source Records to copy
+     */
+    public void copyFrom(TileFrontBlocks source) {
+        Arrays.fill(this._records, NONE);
+        this._changed.clear();
+        for (int dy = 0; dy < this._height; dy++) {
+            for (int dx = 0; dx < this._width; dx++) {
+                int index = source.getIndex(this._offX + dx, this._offY + dy);
+                if (index != -1) {
+                    this._records[dy * this._width + dx] = source._records[index];
+                }
+            }
+        }
+    }
+
+    /**
+     * Replaces the records of tiles with the records of other sets, that each cover
+     * part of the tiles. Only records that changed in the other sets since they were
+     * last copied using {@link #copyFrom(TileFrontBlocks)} are used, other tiles keep
+     * their record. If the changed records of sets covering the same tile differ, the
+     * tile gets no record.
+     *
+     * @param sources Records to merge
+     */
+    public void merge(List<TileFrontBlocks> sources) {
+        BitSet merged = new BitSet(this._records.length);
+        for (TileFrontBlocks source : sources) {
+            for (int dy = 0; dy < source._height; dy++) {
+                for (int dx = 0; dx < source._width; dx++) {
+                    int sourceIndex = dy * source._width + dx;
+                    int index = getIndex(source._offX + dx, source._offY + dy);
+                    if (index == -1 || !source._changed.get(sourceIndex)) {
+                        continue;
+                    }
+                    long record = source._records[sourceIndex];
+                    if (!merged.get(index)) {
+                        merged.set(index);
+                        this._records[index] = record;
+                    } else if (this._records[index] != record) {
+                        this._records[index] = NONE;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes the records of all tiles
+     */
+    public void clearAll() {
+        Arrays.fill(this._records, NONE);
+    }
+
+    /**
+     * Records that a fully opaque block was drawn at a tile. If a record exists of an
+     * opaque block in front of it, nothing changes, as this block is not the front-most one.
+     *
+     * @param x Tile x-coordinate
+     * @param y Tile y-coordinate
+     * @param depth Depth of the opaque block
+     * @param spriteId Id of the sprite drawn
+     */
+    public void setOpaque(int x, int y, int depth, int spriteId) {
+        int index = getIndex(x, y);
+        if (index != -1 && depth <= getDepth(this._records[index])) {
+            this._records[index] = ((long) depth << 32) | (spriteId & 0xFFFFFFFFL);
+            this._changed.set(index);
+        }
+    }
+
+    /**
+     * Records that a block that is not fully opaque was drawn at a tile. If this
+     * was the front-most opaque block, the record of the tile is removed.
+     *
+     * @param x Tile x-coordinate
+     * @param y Tile y-coordinate
+     * @param depth Depth of the block
+     */
+    public void setTransparent(int x, int y, int depth) {
+        int index = getIndex(x, y);
+        if (index != -1 && depth == getDepth(this._records[index])) {
+            this._records[index] = NONE;
+            this._changed.set(index);
+        }
+    }
+
+    /**
+     * Gets whether a block at a tile is hidden behind the front-most opaque block
+     *
+     * @param x Tile x-coordinate
+     * @param y Tile y-coordinate
+     * @param depth Depth of the block
+     * @return True if the block is hidden
+     */
+    public boolean isHidden(int x, int y, int depth) {
+        int index = getIndex(x, y);
+        return index != -1 && depth > getDepth(this._records[index]);
+    }
+
+    /**
+     * Gets whether the front-most opaque block of a tile is at the depth specified,
+     * and shows the sprite specified. Drawing it again would not change anything.
+     *
+     * @param x Tile x-coordinate
+     * @param y Tile y-coordinate
+     * @param depth Depth of the block
+     * @param spriteId Id of the sprite of the block
+     * @return True if this sprite is already the front-most opaque block of the tile
+     */
+    public boolean isFront(int x, int y, int depth, int spriteId) {
+        int index = getIndex(x, y);
+        return index != -1 && this._records[index] == (((long) depth << 32) | (spriteId & 0xFFFFFFFFL));
+    }
+
+    private int getIndex(int x, int y) {
+        int dx = x - this._offX;
+        int dy = y - this._offY;
+        if (dx < 0 || dy < 0 || dx >= this._width || dy >= this._height) {
+            return -1;
+        }
+        return dy * this._width + dx;
+    }
+
+    private static int getDepth(long record) {
+        return (record == NONE) ? Integer.MAX_VALUE : (int) (record >> 32);
+    }
+}
@@ -0,0 +1,169 @@
+package com.bergerkiller.bukkit.maplands;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.zip.DeflaterOutputStream;
+
+import org.junit.Test;
+
+import com.bergerkiller.bukkit.maplands.anvil.AnvilChunk;
+import com.bergerkiller.bukkit.maplands.anvil.NBTReader;
+import com.bergerkiller.bukkit.maplands.anvil.RegionFileReader;
+
+/**
+ * Tests reading chunks from region files using {@link RegionFileReader}
+ */
+public class TestAnvilRegion {
+
+    @Test
+    public void testReadChunk() throws IOException {
+        File folder = Files.createTempDirectory("maplands_region").toFile();
+        try {
+            writeRegionChunk(folder, 33, -2, createChunkData("minecraft:full"));
+
+            AnvilChunk chunk = RegionFileReader.readChunk(folder, 33, -2, -4, 24);
+            assertNotNull(chunk);
+            assertEquals(33, chunk.getX());
+            assertEquals(-2, chunk.getZ());
+            assertEquals("minecraft:stone", chunk.getBlockState(1, 2, 3));
+            assertEquals("minecraft:oak_stairs[facing=north,half=bottom]", chunk.getBlockState(15, 15, 15));
+            assertEquals("minecraft:air", chunk.getBlockState(0, 0, 0));
+            assertEquals("minecraft:air", chunk.getBlockState(1, 18, 3));
+            assertEquals("minecraft:air", chunk.getBlockState(1, -64, 3));
+            assertEquals("minecraft:air", chunk.getBlockState(1, 1000, 3));
+            assertFalse(chunk.isSectionEmpty(chunk.getSectionIndex(0)));
+            assertTrue(chunk.isSectionEmpty(chunk.getSectionIndex(16)));
+            assertTrue(chunk.isSectionEmpty(chunk.getSectionIndex(-64)));
+            assertEquals(-1, chunk.getSectionIndex(320));
+
+            // Chunks not stored in the region file, or no region file at all
+            assertNull(RegionFileReader.readChunk(folder, 32, -2, -4, 24));
+            assertNull(RegionFileReader.readChunk(folder, 0, 0, -4, 24));
+            assertTrue(RegionFileReader.isChunkGenerated(folder, 33, -2));
+            assertFalse(RegionFileReader.isChunkGenerated(folder, 32, -2));
+            assertFalse(RegionFileReader.isChunkGenerated(folder, 0, 0));
+        } finally {
+            for (File file : folder.listFiles()) {
+                file.delete();
+            }
+            folder.delete();
+        }
+    }
+
+    @Test
+    public void testChunkNotGenerated() throws IOException {
+        File folder = Files.createTempDirectory("maplands_region").toFile();
+        try {
+            writeRegionChunk(folder, 0, 0, createChunkData("minecraft:noise"));
+            assertNull(RegionFileReader.readChunk(folder, 0, 0, -4, 24));
+            assertFalse(RegionFileReader.isChunkGenerated(folder, 0, 0));
+        } finally {
+            for (File file : folder.listFiles()) {
+                file.delete();
+            }
+            folder.delete();
+        }
+    }
+
+    // Chunk in the format of Minecraft 1.18 and later, with a single section at y=0
+    private static byte[] createChunkData(String status) throws IOException {
+        long[] data = new long[256]; // 4 bits per block
+        setIndex(data, 1, 2, 3, 1);
+        setIndex(data, 15, 15, 15, 2);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(NBTReader.TAG_COMPOUND);
+        out.writeUTF("");
+        {
+            out.writeByte(NBTReader.TAG_INT);
+            out.writeUTF("DataVersion");
+            out.writeInt(2975);
+
+            out.writeByte(NBTReader.TAG_STRING);
+            out.writeUTF("Status");
+            out.writeUTF(status);
+
+            out.writeByte(NBTReader.TAG_LIST);
+            out.writeUTF("sections");
+            out.writeByte(NBTReader.TAG_COMPOUND);
+            out.writeInt(1);
+            {
+                out.writeByte(NBTReader.TAG_BYTE);
+                out.writeUTF("Y");
+                out.writeByte(0);
+
+                out.writeByte(NBTReader.TAG_COMPOUND);
+                out.writeUTF("block_states");
+                {
+                    out.writeByte(NBTReader.TAG_LIST);
+                    out.writeUTF("palette");
+                    out.writeByte(NBTReader.TAG_COMPOUND);
+                    out.writeInt(3);
+                    writePaletteEntry(out, "minecraft:air");
+                    writePaletteEntry(out, "minecraft:stone");
+                    writePaletteEntry(out, "minecraft:oak_stairs", "half", "bottom", "facing", "north");
+
+                    out.writeByte(NBTReader.TAG_LONG_ARRAY);
+                    out.writeUTF("data");
+                    out.writeInt(data.length);
+                    for (long value : data) {
+                        out.writeLong(value);
+                    }
+                }
+                out.writeByte(NBTReader.TAG_END);
+            }
+            out.writeByte(NBTReader.TAG_END);
+        }
+        out.writeByte(NBTReader.TAG_END);
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static void writePaletteEntry(DataOutputStream out, String name, String... properties) throws IOException {
+        out.writeByte(NBTReader.TAG_STRING);
+        out.writeUTF("Name");
+        out.writeUTF(name);
+        if (properties.length > 0) {
+            out.writeByte(NBTReader.TAG_COMPOUND);
+            out.writeUTF("Properties");
+            for (int i = 0; i < properties.length; i += 2) {
+                out.writeByte(NBTReader.TAG_STRING);
+                out.writeUTF(properties[i]);
+                out.writeUTF(properties[i + 1]);
+            }
+            out.writeByte(NBTReader.TAG_END);
+        }
+        out.writeByte(NBTReader.TAG_END);
+    }
+
+    private static void setIndex(long[] data, int x, int y, int z, int value) {
+        int i = (y << 8) | (z << 4) | x;
+        data[i >> 4] |= (long) value << ((i & 15) * 4);
+    }
+
+    private static void writeRegionChunk(File folder, int cx, int cz, byte[] nbt) throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (DeflaterOutputStream out = new DeflaterOutputStream(compressed)) {
+            out.write(nbt);
+        }
+        byte[] data = compressed.toByteArray();
+        int sectors = (data.length + 5 + 4095) / 4096;
+
+        try (RandomAccessFile file = new RandomAccessFile(RegionFileReader.getRegionFile(folder, cx, cz), "rw")) {
+            file.setLength(4096 * (2 + sectors));
+            file.seek(4 * ((cx & 31) + (cz & 31) * 32));
+            file.writeInt((2 << 8) | sectors);
+            file.seek(2 * 4096);
+            file.writeInt(data.length + 1);
+            file.writeByte(2); // zlib
+            file.write(data);
+        }
+    }
+}
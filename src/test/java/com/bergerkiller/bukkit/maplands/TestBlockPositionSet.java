@@ -0,0 +1,55 @@
+package com.bergerkiller.bukkit.maplands;
+
+import static org.junit.Assert.*;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+import com.bergerkiller.bukkit.maplands.util.BlockPositionSet;
+
+/**
+ * Tests the {@link BlockPositionSet}
+ */
+public class TestBlockPositionSet {
+
+    @Test
+    public void testPacking() {
+        int[][] coords = new int[][] {
+            {0, 0, 0}, {1, 2, 3}, {-1, -1, -1}, {-64, 319, 12},
+            {30000000, -64, -30000000}, {-30000000, 2047, 30000000}, {5, -2048, -5}
+        };
+        for (int[] c : coords) {
+            long position = BlockPositionSet.pack(c[0], c[1], c[2]);
+            assertEquals(c[0], BlockPositionSet.unpackX(position));
+            assertEquals(c[1], BlockPositionSet.unpackY(position));
+            assertEquals(c[2], BlockPositionSet.unpackZ(position));
+        }
+    }
+
+    @Test
+    public void testAddContains() {
+        BlockPositionSet set = new BlockPositionSet();
+        Set<Long> expected = new HashSet<Long>();
+        Random random = new Random(1234);
+        for (int i = 0; i < 10000; i++) {
+            int x = random.nextInt(64) - 32;
+            int y = random.nextInt(64) - 32;
+            int z = random.nextInt(64) - 32;
+            assertEquals(expected.add(BlockPositionSet.pack(x, y, z)), set.add(x, y, z));
+            assertTrue(set.contains(x, y, z));
+        }
+        assertEquals(expected.size(), set.size());
+
+        final Set<Long> found = new HashSet<Long>();
+        set.forEach(position -> assertTrue(found.add(position)));
+        assertEquals(expected, found);
+
+        set.clear();
+        assertTrue(set.isEmpty());
+        assertFalse(set.contains(0, 0, 0));
+        set.forEach(position -> fail("Set is not empty"));
+    }
+}
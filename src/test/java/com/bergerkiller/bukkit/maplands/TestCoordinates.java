@@ -8,6 +8,7 @@ import org.junit.Test;
 
 import com.bergerkiller.bukkit.common.bases.IntVector3;
 import com.bergerkiller.bukkit.common.utils.LogicUtil;
+import com.bergerkiller.bukkit.maplands.util.Linked2DTile;
 
 public class TestCoordinates {
 
@@ -34,6 +35,52 @@ public class TestCoordinates {
         }
     }
 
+    @Test
+    public void testDepthStepDelta() {
+        BlockFace[] facings = { BlockFace.NORTH_EAST, BlockFace.SOUTH_WEST, BlockFace.NORTH_WEST, BlockFace.SOUTH_EAST };
+        for (BlockFace facing : facings) {
+            IntVector3 delta = MapUtil.getDepthStepDelta(facing);
+            for (int x = -20; x < 20; x++) {
+                for (int y = -20; y < 20; y++) {
+                    for (int z = -20; z < 20; z++) {
+                        if (!MapUtil.isTile(x, y, z)) {
+                            continue;
+                        }
+
+                        IntVector3 a = MapUtil.screenTileToBlock(facing, x, y, z);
+                        IntVector3 b = MapUtil.screenTileToBlock(facing, x, y, z + 3);
+                        assertEquals(b, a.add(delta.x, delta.y, delta.z));
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testTileMoveToBlock() {
+        BlockFace[] facings = { BlockFace.NORTH_EAST, BlockFace.SOUTH_WEST, BlockFace.NORTH_WEST, BlockFace.SOUTH_EAST };
+        for (BlockFace facing : facings) {
+            IntVector3 delta = MapUtil.getDepthStepDelta(facing);
+            for (int x = -20; x < 20; x++) {
+                for (int y = -20; y < 20; y++) {
+                    Linked2DTile tile = new Linked2DTile(x, y);
+                    if (tile.getDepthModThree() == -1) {
+                        continue;
+                    }
+
+                    int depth = tile.getDepthModThree() - 30;
+                    tile.moveToBlock(facing, depth, 100, 64, -200);
+                    for (int step = 0; step < 20; step++) {
+                        IntVector3 expected = MapUtil.screenTileToBlock(facing, x, y, depth).add(100, 64, -200);
+                        assertEquals(expected, new IntVector3(tile.blockX, tile.blockY, tile.blockZ));
+                        tile.stepBlock(delta, 1);
+                        depth += 3;
+                    }
+                }
+            }
+        }
+    }
+
     @Test
     public void testTileScreenConversion() {
         ZoomLevel zoom = ZoomLevel.DEFAULT;
@@ -106,19 +106,19 @@ public class TestLinked2DTileSet {
 
             for (int depth : new int[] {0, 1, 2}) {
                 Linked2DTileList list = set.getValidTiles(depth);
-                Linked2DTile tile = list.head;
+                Linked2DTile tile = list.cursor();
                 for (int y = -100; y <= 100; y++) {
                     for (int x = -100; x <= 100; x++) {
                         if (!MapUtil.isTile(x, y, depth)) {
                             continue;
                         }
   
-                        assertFalse(tile.next == list.tail);
-                        tile = tile.next;
+                        assertTrue(tile.next());
                         assertEquals(x, tile.x);
                         assertEquals(y, tile.y);
                     }
                 }
+                assertFalse(tile.next());
             }
         }
 
@@ -138,7 +138,7 @@ public class TestLinked2DTileSet {
             for (int depth : new int[] {0, 1, 2}) {
                 Linked2DTileList list = set.getValidTiles(depth);
                 assertTrue(list.isEmpty());
-                assertTrue(list.head.next == list.tail);
+                assertFalse(list.cursor().next());
             }
         }
     }
@@ -179,13 +179,89 @@ public class TestLinked2DTileSet {
         assertTrue(set.getValidTiles(1).isEmpty());
         assertFalse(set.getValidTiles(2).isEmpty());
         {
-            Linked2DTile tile = set.getValidTiles(2).head.next;
+            Linked2DTile tile = set.getValidTiles(2).cursor();
+            assertTrue(tile.next());
             assertEquals(0, tile.x);
             assertEquals(0, tile.y);
-            assertEquals(set.getValidTiles(2).tail, tile.next);
+            assertFalse(tile.next());
         }
     }
 
+    @Test
+    public void testCursorRemove() {
+        Linked2DTileSet set = new Linked2DTileSet(-100, 100, -100, 100);
+        set.setAll();
+
+        // Remove every other tile while iterating
+        boolean remove = false;
+        Linked2DTile tile = set.getValidTiles(1).cursor();
+        while (tile.next()) {
+            if (remove) {
+                tile.remove();
+                assertFalse(set.contains(tile.x, tile.y));
+            }
+            remove = !remove;
+        }
+
+        // Verify only the tiles that were not removed remain, in the same order
+        remove = false;
+        tile = set.getValidTiles(1).cursor();
+        for (int y = -100; y <= 100; y++) {
+            for (int x = -100; x <= 100; x++) {
+                if (!MapUtil.isTile(x, y, 1)) {
+                    continue;
+                }
+                assertEquals(!remove, set.contains(x, y));
+                if (!remove) {
+                    assertTrue(tile.next());
+                    assertEquals(x, tile.x);
+                    assertEquals(y, tile.y);
+                }
+                remove = !remove;
+            }
+        }
+        assertFalse(tile.next());
+
+        // Setting a removed tile adds it back, at its original position
+        tile = set.getValidTiles(1).cursor();
+        assertTrue(tile.next());
+        int firstX = tile.x, firstY = tile.y;
+        assertTrue(tile.next());
+        int secondX = tile.x;
+        int removedX = firstX + 1;
+        while (!MapUtil.isTile(removedX, firstY, 1) && removedX < secondX) {
+            removedX++;
+        }
+        assertFalse(set.contains(removedX, firstY));
+        assertTrue(set.set(removedX, firstY));
+        tile = set.getValidTiles(1).cursor();
+        assertTrue(tile.next());
+        assertTrue(tile.next());
+        assertEquals(removedX, tile.x);
+        assertEquals(firstY, tile.y);
+    }
+
+    @Test
+    public void testCursorSkipTo() {
+        Linked2DTileSet set = new Linked2DTileSet(-100, 100, -100, 100);
+        set.setAll();
+
+        // Stop part-way, then continue with a new cursor after the last tile visited
+        Linked2DTile tile = set.getValidTiles(2).cursor();
+        for (int n = 0; n < 500; n++) {
+            assertTrue(tile.next());
+        }
+        int lastIndex = tile.getIndex();
+        assertTrue(tile.next());
+        int nextX = tile.x, nextY = tile.y;
+
+        Linked2DTile resumed = set.getValidTiles(2).cursor();
+        resumed.skipTo(lastIndex);
+        assertTrue(resumed.next());
+        assertEquals(nextX, resumed.x);
+        assertEquals(nextY, resumed.y);
+    }
+
     @Test
     public void testInverseIterator() {
         Linked2DTileSet set = new Linked2DTileSet(-100, 100, -100, 100);
@@ -0,0 +1,91 @@
+package com.bergerkiller.bukkit.maplands;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.Random;
+
+import org.bukkit.block.BlockFace;
+import org.junit.Test;
+
+/**
+ * Tests the binary format of {@link MapCanvasCacheFile}
+ */
+public class TestMapCanvasCacheFile {
+
+    @Test
+    public void testEncodeDecode() throws IOException {
+        MapCanvasCache.Item item = createItem(256, 128);
+        MapCanvasCache.Item decoded = MapCanvasCacheFile.decode(MapCanvasCacheFile.encode(item));
+        assertEquals(item.width, decoded.width);
+        assertEquals(item.height, decoded.height);
+        assertEquals(item.view, decoded.view);
+        assertArrayEquals(item.color, decoded.color);
+        assertArrayEquals(item.depth, decoded.depth);
+    }
+
+    @Test
+    public void testDepthExtremes() throws IOException {
+        MapCanvasCache.Item item = createItem(64, 64);
+        for (int i = 0; i < item.depth.length; i++) {
+            switch ((i * 7919) % 5) {
+            case 0: item.depth[i] = Short.MAX_VALUE; break;
+            case 1: item.depth[i] = Short.MIN_VALUE; break;
+            case 2: item.depth[i] = 0; break;
+            case 3: item.depth[i] = -1; break;
+            }
+        }
+        MapCanvasCache.Item decoded = MapCanvasCacheFile.decode(MapCanvasCacheFile.encode(item));
+        assertArrayEquals(item.depth, decoded.depth);
+    }
+
+    @Test
+    public void testDepthPrediction() {
+        // Flat surfaces, like those of an isometric map, leave almost nothing to store
+        int width = 256, height = 256;
+        MapCanvasCache.Item item = createItem(width, height);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                item.color[y * width + x] = 0;
+                item.depth[y * width + x] = (short) (((x / 16) % 2 == 0) ? (3 * y + x) : (2 * y - x));
+            }
+        }
+        assertTrue(MapCanvasCacheFile.encode(item).length < 2048);
+    }
+
+    @Test
+    public void testCorruptData() {
+        byte[] encoded = MapCanvasCacheFile.encode(createItem(128, 128));
+
+        // Flip a bit in the middle of the data
+        byte[] corrupt = encoded.clone();
+        corrupt[corrupt.length / 2] ^= 0x10;
+        assertDecodeFails(corrupt);
+
+        // Truncated, like when the server crashed while writing
+        byte[] truncated = new byte[encoded.length / 2];
+        System.arraycopy(encoded, 0, truncated, 0, truncated.length);
+        assertDecodeFails(truncated);
+    }
+
+    private static void assertDecodeFails(byte[] data) {
+        try {
+            MapCanvasCacheFile.decode(data);
+            fail("Corrupt data was decoded");
+        } catch (IOException ex) {
+            // Expected
+        }
+    }
+
+    private static MapCanvasCache.Item createItem(int width, int height) {
+        Random random = new Random(12345);
+        byte[] color = new byte[width * height];
+        short[] depth = new short[width * height];
+        for (int i = 0; i < color.length; i++) {
+            color[i] = (byte) (random.nextInt(4) + 4 * ((i / width) / 16));
+            depth[i] = (short) (1000 + (i % width) / 4 + (i / width) / 2 + random.nextInt(3));
+        }
+        MapCanvasCache.View view = new MapCanvasCache.View("world", BlockFace.SOUTH_WEST, ZoomLevel.DEFAULT, 100, 64, -200);
+        return new MapCanvasCache.Item(width, height, view, color, depth);
+    }
+}
@@ -0,0 +1,67 @@
+package com.bergerkiller.bukkit.maplands;
+
+import static org.junit.Assert.*;
+
+import java.util.UUID;
+
+import org.bukkit.block.BlockFace;
+import org.junit.Test;
+
+/**
+ * Tests the eviction of the {@link MapCanvasMemoryCache}
+ */
+public class TestMapCanvasMemoryCache {
+
+    @Test
+    public void testLeastRecentlyUsedEviction() {
+        MapCanvasMemoryCache cache = new MapCanvasMemoryCache();
+        cache.setMaxBytes(3 * 4000);
+
+        UUID a = UUID.randomUUID(), b = UUID.randomUUID(), c = UUID.randomUUID(), d = UUID.randomUUID();
+        cache.put(a, createItem(true));
+        cache.put(b, createItem(true));
+        cache.put(c, createItem(true));
+        assertEquals(3, cache.size());
+        assertEquals(0, cache.getEvictions());
+
+        // Use a, so that b is the least recently used
+        assertNotNull(cache.get(a));
+        cache.put(d, createItem(true));
+        assertEquals(3, cache.size());
+        assertEquals(1, cache.getEvictions());
+        assertNull(cache.get(b));
+        assertNotNull(cache.get(a));
+        assertNotNull(cache.get(c));
+        assertNotNull(cache.get(d));
+        assertEquals(4, cache.getHits());
+        assertEquals(1, cache.getMisses());
+        assertTrue(cache.getBytes() <= cache.getMaxBytes());
+    }
+
+    @Test
+    public void testUnsavedNotEvicted() {
+        MapCanvasMemoryCache cache = new MapCanvasMemoryCache();
+        cache.setMaxBytes(4000);
+
+        UUID a = UUID.randomUUID(), b = UUID.randomUUID();
+        MapCanvasCache.Item itemA = createItem(false);
+        cache.put(a, itemA);
+        cache.put(b, createItem(false));
+        assertEquals(2, cache.size());
+        assertEquals(2, cache.getUnsaved().size());
+
+        // Once saved, the least recently used is evicted
+        itemA.saved.set(true);
+        cache.evictSaved();
+        assertEquals(1, cache.size());
+        assertNull(cache.get(a));
+        assertNotNull(cache.get(b));
+    }
+
+    private static MapCanvasCache.Item createItem(boolean saved) {
+        MapCanvasCache.View view = new MapCanvasCache.View("world", BlockFace.NORTH_EAST, ZoomLevel.DEFAULT, 0, 0, 0);
+        MapCanvasCache.Item item = new MapCanvasCache.Item(32, 32, view, new byte[32 * 32], new short[32 * 32]);
+        item.saved.set(saved);
+        return item;
+    }
+}
@@ -0,0 +1,180 @@
+package com.bergerkiller.bukkit.maplands;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.UUID;
+
+import org.junit.Test;
+
+/**
+ * Tests storing data of many maps in a single file using {@link MapCanvasPackedStore}
+ */
+public class TestMapCanvasPackedStore {
+
+    @Test
+    public void testWriteRead() throws IOException {
+        File folder = Files.createTempDirectory("maplands").toFile();
+        UUID a = new UUID(1, 1);
+        UUID b = new UUID(2, 2);
+        byte[] dataA = createData(10000, 1);
+        byte[] dataB = createData(100, 2);
+
+        MapCanvasPackedStore store = new MapCanvasPackedStore(folder, "maps");
+        store.write(a, dataA);
+        store.write(b, dataB);
+        assertArrayEquals(dataA, store.read(a));
+        assertArrayEquals(dataB, store.read(b));
+        assertNull(store.read(new UUID(3, 3)));
+
+        // Replace with new data
+        byte[] dataA2 = createData(5000, 3);
+        store.write(a, dataA2);
+        assertArrayEquals(dataA2, store.read(a));
+        store.close();
+
+        // Open again, data must still be there
+        store = new MapCanvasPackedStore(folder, "maps");
+        assertEquals(2, store.size());
+        assertArrayEquals(dataA2, store.read(a));
+        assertArrayEquals(dataB, store.read(b));
+        store.remove(b);
+        assertNull(store.read(b));
+        store.close();
+    }
+
+    @Test
+    public void testReuseFreeSectors() throws IOException {
+        File folder = Files.createTempDirectory("maplands").toFile();
+        MapCanvasPackedStore store = new MapCanvasPackedStore(folder, "maps");
+        UUID a = new UUID(1, 1);
+        store.write(a, createData(3 * MapCanvasPackedStore.SECTOR_SIZE, 1));
+        store.flush();
+        int fileSectors = store.getFileSectors();
+
+        // Writing it again many times re-uses the freed sectors, instead of growing the file
+        for (int i = 0; i < 20; i++) {
+            store.write(a, createData(3 * MapCanvasPackedStore.SECTOR_SIZE, i));
+            store.flush();
+        }
+        assertTrue(store.getFileSectors() <= 2 * fileSectors);
+        store.close();
+    }
+
+    @Test
+    public void testCompact() throws IOException {
+        File folder = Files.createTempDirectory("maplands").toFile();
+        MapCanvasPackedStore store = new MapCanvasPackedStore(folder, "maps");
+        byte[][] data = new byte[200][];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = createData(MapCanvasPackedStore.SECTOR_SIZE, i);
+            store.write(new UUID(i, i), data[i]);
+        }
+        store.flush();
+        int fileSectors = store.getFileSectors();
+
+        // Removing most maps makes the file shrink
+        for (int i = 0; i < data.length; i++) {
+            if ((i % 4) != 0) {
+                store.remove(new UUID(i, i));
+            }
+        }
+        store.flush();
+        assertTrue(store.getFileSectors() < fileSectors / 2);
+        assertEquals(store.getUsedSectors(), store.getFileSectors());
+        store.close();
+
+        store = new MapCanvasPackedStore(folder, "maps");
+        for (int i = 0; i < data.length; i += 4) {
+            assertArrayEquals(data[i], store.read(new UUID(i, i)));
+        }
+        store.close();
+    }
+
+    @Test
+    public void testCompactLastRecord() throws IOException {
+        File folder = Files.createTempDirectory("maplands").toFile();
+        MapCanvasPackedStore store = new MapCanvasPackedStore(folder, "maps");
+        for (int i = 0; i < 100; i++) {
+            store.write(new UUID(i, i), createData(1000, i));
+        }
+
+        // Last record in the file ends partway a sector
+        UUID last = new UUID(1000, 1000);
+        byte[] lastData = createData(100, 1000);
+        store.write(last, lastData);
+        store.flush();
+
+        for (int i = 0; i < 100; i++) {
+            store.remove(new UUID(i, i));
+        }
+        store.flush();
+        assertEquals(1, store.getFileSectors());
+        assertArrayEquals(lastData, store.read(last));
+
+        // Sectors handed out afterwards must not overwrite the moved record
+        byte[] otherData = createData(1000, 2000);
+        store.write(new UUID(2000, 2000), otherData);
+        store.flush();
+        assertArrayEquals(lastData, store.read(last));
+        assertArrayEquals(otherData, store.read(new UUID(2000, 2000)));
+        store.close();
+
+        store = new MapCanvasPackedStore(folder, "maps");
+        assertArrayEquals(lastData, store.read(last));
+        store.close();
+    }
+
+    @Test
+    public void testReadOnly() throws IOException {
+        File folder = Files.createTempDirectory("maplands").toFile();
+        assertFalse(MapCanvasPackedStore.exists(folder, "maps"));
+        MapCanvasPackedStore store = new MapCanvasPackedStore(folder, "maps");
+        byte[] data = createData(1000, 1);
+        store.write(new UUID(1, 1), data);
+        store.close();
+        assertTrue(MapCanvasPackedStore.exists(folder, "maps"));
+
+        // Data stored before is read, but nothing can be changed
+        store = new MapCanvasPackedStore(folder, "maps", true);
+        assertArrayEquals(data, store.read(new UUID(1, 1)));
+        try {
+            store.write(new UUID(2, 2), createData(100, 2));
+            fail("Writing to a read-only store must fail");
+        } catch (IOException ex) {
+            // Expected
+        }
+        store.close();
+
+        // Once closed, reads find nothing
+        assertNull(store.read(new UUID(1, 1)));
+    }
+
+    @Test
+    public void testCorruptIndex() throws IOException {
+        File folder = Files.createTempDirectory("maplands").toFile();
+        MapCanvasPackedStore store = new MapCanvasPackedStore(folder, "maps");
+        store.write(new UUID(1, 1), createData(1000, 1));
+        store.close();
+
+        File indexFile = new File(folder, "maps.mlindex");
+        byte[] index = Files.readAllBytes(indexFile.toPath());
+        index[index.length / 2] ^= 0x10;
+        Files.write(indexFile.toPath(), index);
+
+        // Nothing can be trusted, so the store is empty
+        store = new MapCanvasPackedStore(folder, "maps");
+        assertEquals(0, store.size());
+        assertNull(store.read(new UUID(1, 1)));
+        store.close();
+    }
+
+    private static byte[] createData(int length, int seed) {
+        byte[] data = new byte[length];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+}